@@ -0,0 +1,159 @@
+package com.dfs.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes their results to a CSV file, jmh-result.csv
+ * unless the -rf and -rff options say otherwise. With -baseline the results
+ * are compared to the ones of an earlier run read from its CSV file.
+ *
+ * <pre>
+ * java -jar benchmarks.jar -baseline baseline.csv [jmh options] [benchmarks regexp]
+ * </pre>
+ * */
+public class BenchmarkRunner {
+	public static final String DEFAULT_RESULT_FILE = "jmh-result.csv";
+
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException, IOException {
+		String baseline = null;
+		List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+		int index = jmhArgs.indexOf("-baseline");
+		if (index != -1) {
+			if (index + 1 == jmhArgs.size()) {
+				System.err.println("-baseline expects the CSV file of an earlier run");
+				System.exit(1);
+			}
+			baseline = jmhArgs.remove(index + 1);
+			jmhArgs.remove(index);
+		}
+
+		CommandLineOptions commandLine = new CommandLineOptions(jmhArgs.toArray(new String[jmhArgs.size()]));
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if (!commandLine.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.CSV);
+		if (!commandLine.getResult().hasValue())
+			options.result(DEFAULT_RESULT_FILE);
+
+		Collection<RunResult> results = new Runner(options.build()).run();
+
+		if (baseline != null)
+			compare(readCsv(baseline), results);
+	}
+
+	/**
+	 * prints the change of the score of every benchmark found in the baseline
+	 * */
+	private static void compare(Map<String, Double> baseline, Collection<RunResult> results) {
+		System.out.println();
+		System.out.println("Compared to the baseline:");
+		for (RunResult result : results) {
+			String key = key(result);
+			double score = result.getPrimaryResult().getScore();
+			String unit = result.getPrimaryResult().getScoreUnit();
+			Double old = baseline.get(key);
+			if (old == null) {
+				System.out.println(String.format("%-80s %12.3f %s (new)", key, score, unit));
+			} else {
+				System.out.println(String.format("%-80s %12.3f -> %12.3f %s (%+.1f%%)", key, old, score, unit,
+						(score - old) * 100 / old));
+			}
+		}
+	}
+
+	/**
+	 * @return benchmark name followed by its sorted parameters
+	 * */
+	private static String key(RunResult result) {
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		for (String name : result.getParams().getParamsKeys()) {
+			params.put(name, result.getParams().getParam(name));
+		}
+		return key(result.getParams().getBenchmark(), result.getParams().getMode().shortLabel(), params);
+	}
+
+	private static String key(String benchmark, String mode, TreeMap<String, String> params) {
+		StringBuilder key = new StringBuilder(benchmark).append(' ').append(mode);
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			key.append(' ').append(param.getKey()).append('=').append(param.getValue());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * reads the scores of a CSV file written by JMH
+	 * */
+	private static Map<String, Double> readCsv(String path) throws IOException {
+		Map<String, Double> scores = new HashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8));
+		try {
+			String line = in.readLine();
+			if (line == null)
+				return scores;
+
+			List<String> header = splitCsv(line);
+			int benchmark = header.indexOf("Benchmark");
+			int mode = header.indexOf("Mode");
+			int score = header.indexOf("Score");
+
+			while ((line = in.readLine()) != null) {
+				List<String> fields = splitCsv(line);
+				if (fields.size() != header.size())
+					continue;
+
+				TreeMap<String, String> params = new TreeMap<String, String>();
+				for (int i = 0; i < header.size(); i++) {
+					if (header.get(i).startsWith("Param: ") && !fields.get(i).isEmpty())
+						params.put(header.get(i).substring("Param: ".length()), fields.get(i));
+				}
+
+				// secondary results, like the profilers ones, are listed
+				// as benchmark:result and are not compared
+				String name = fields.get(benchmark);
+				if (name.indexOf(':') == -1)
+					scores.put(key(name, fields.get(mode), params), Double.parseDouble(fields.get(score)));
+			}
+		} finally {
+			in.close();
+		}
+		return scores;
+	}
+
+	private static List<String> splitCsv(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ',' && !quoted) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+}
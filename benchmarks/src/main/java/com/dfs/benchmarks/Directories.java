@@ -0,0 +1,21 @@
+package com.dfs.benchmarks;
+
+import java.io.File;
+
+/**
+ * Temporary directories used by the benchmarks.
+ * */
+public class Directories {
+	/**
+	 * deletes the directory and all its contents
+	 * */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
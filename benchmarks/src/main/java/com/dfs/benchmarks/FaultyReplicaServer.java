@@ -0,0 +1,126 @@
+package com.dfs.benchmarks;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Random;
+
+import com.dfs.server.ReplicaServer;
+import com.ds.interfaces.FileContents;
+import com.ds.interfaces.MessageNotFoundException;
+import com.ds.interfaces.ReplicaLocation;
+
+/**
+ * Replica server delaying its calls and failing a share of them, used by the
+ * load generator to see how the cluster behaves with a slow or broken
+ * replica.
+ * */
+public class FaultyReplicaServer extends ReplicaServer {
+	private volatile long delay = 0;
+	private volatile double failureRate = 0;
+	private Random random = new Random();
+
+	public FaultyReplicaServer(String host, String directoryPath) throws RemoteException, NotBoundException {
+		super(host, directoryPath);
+	}
+
+	/**
+	 * @param delay
+	 *            milliseconds every call waits before running
+	 * */
+	public void setDelay(long delay) {
+		this.delay = delay;
+	}
+
+	/**
+	 * @param failureRate
+	 *            share of the calls failing with a RemoteException
+	 * */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * stops answering calls as if the replica process died
+	 * */
+	public void crash() throws NoSuchObjectException {
+		UnicastRemoteObject.unexportObject(this, true);
+	}
+
+	private void inject() throws RemoteException {
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (failureRate > 0) {
+			double draw;
+			synchronized (random) {
+				draw = random.nextDouble();
+			}
+			if (draw < failureRate)
+				throw new RemoteException("injected replica failure");
+		}
+	}
+
+	@Override
+	public FileContents read(String fileName) throws FileNotFoundException, IOException, RemoteException {
+		inject();
+		return super.read(fileName);
+	}
+
+	@Override
+	public FileContents read(String fileName, long offset, int length) throws FileNotFoundException,
+			IOException, RemoteException {
+		inject();
+		return super.read(fileName, offset, length);
+	}
+
+	@Override
+	public FileContents readIfModified(String fileName, long version) throws FileNotFoundException,
+			IOException, RemoteException {
+		inject();
+		return super.readIfModified(fileName, version);
+	}
+
+	@Override
+	public int write(long txnID, long msgSeqNum, byte[] data) throws RemoteException, IOException {
+		inject();
+		return super.write(txnID, msgSeqNum, data);
+	}
+
+	@Override
+	public int writeBatch(long txnID, long[] msgSeqNums, byte[][] data) throws RemoteException, IOException {
+		inject();
+		return super.writeBatch(txnID, msgSeqNums, data);
+	}
+
+	@Override
+	public int chainWrite(long txnID, long msgSeqNum, byte[] data, ReplicaLocation[] chain)
+			throws RemoteException, IOException {
+		inject();
+		return super.chainWrite(txnID, msgSeqNum, data, chain);
+	}
+
+	/**
+	 * appends are faulty through the commit they run
+	 * */
+	@Override
+	public int commit(long txnID, long numOfMsgs, String filename) throws MessageNotFoundException,
+			RemoteException {
+		inject();
+		return super.commit(txnID, numOfMsgs, filename);
+	}
+
+	@Override
+	public int abort(long txnID) throws RemoteException {
+		inject();
+		return super.abort(txnID);
+	}
+}
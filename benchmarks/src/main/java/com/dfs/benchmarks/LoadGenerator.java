@@ -0,0 +1,399 @@
+package com.dfs.benchmarks;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+import com.dfs.client.Client;
+import com.dfs.server.MainServer;
+import com.ds.interfaces.ServerBusyException;
+import com.ds.interfaces.ServerInterface;
+
+/**
+ * Boots a whole cluster in this process, see Topology, and runs a mix of
+ * operations on it from concurrent clients. Throughput and latency
+ * percentiles are reported per operation once the run is over.
+ *
+ * The operations are reads of random files, transactions writing messages
+ * to a random file then committing, transactions aborted after half of their
+ * messages and transactions committing to a single hot file.
+ *
+ * <pre>
+ * java -cp benchmarks.jar com.dfs.benchmarks.LoadGenerator [options]
+ *   -clients n        concurrent clients (16)
+ *   -duration s       measured seconds (30)
+ *   -warmup s         seconds run before measuring (5)
+ *   -mix r,t,a,h      weights of reads, transactions, aborts, hot commits (70,20,5,5)
+ *   -files n          number of files read and written (100)
+ *   -messages n       messages per transaction (4)
+ *   -size bytes       size of a message (1024)
+ *   -replicas n       number of replica servers (2)
+ *   -port p           first port used (17000)
+ *   -quorum n         write quorum of the main server, 0 for all replicas (0)
+ *   -admission m,q    admission limits of the main server (disabled)
+ *   -faulty n         number of replicas the faults are injected in (1)
+ *   -delay ms         delay of every call of the faulty replicas (0)
+ *   -failures rate    share of the calls of the faulty replicas failing (0)
+ *   -crash s          second of the run the faulty replicas crash at (never)
+ *   -out file         CSV file the results are written to
+ *   -binaryLog        servers log into binary segments instead of text
+ *   -verbose          keep the servers output
+ * </pre>
+ * */
+public class LoadGenerator {
+	public static final int READ = 0;
+	public static final int TRANSACTION = 1;
+	public static final int ABORT = 2;
+	public static final int HOT_COMMIT = 3;
+
+	private static final String[] OPERATION_NAMES = { "read", "transaction", "abort", "hot-commit" };
+
+	private static final String HOT_FILE = "hot.txt";
+
+	private int clients = 16;
+	private long duration = 30;
+	private long warmup = 5;
+	private int[] mix = { 70, 20, 5, 5 };
+	private int files = 100;
+	private int messages = 4;
+	private int size = 1024;
+	private int replicas = 2;
+	private int port = 17000;
+	private int quorum = 0;
+	private int[] admission;
+	private int faulty = 1;
+	private long delay = 0;
+	private double failures = 0;
+	private long crash = -1;
+	private String out;
+	private boolean verbose = false;
+	private boolean binaryLog = false;
+
+	private volatile boolean measuring = false;
+	private volatile boolean stopped = false;
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		try {
+			generator.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("see the LoadGenerator documentation for the options");
+			System.exit(1);
+		}
+		generator.run();
+		System.exit(0);
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("-verbose")) {
+				verbose = true;
+				continue;
+			}
+			if (option.equals("-binaryLog")) {
+				binaryLog = true;
+				continue;
+			}
+			if (i + 1 == args.length)
+				throw new IllegalArgumentException("missing value of " + option);
+
+			String value = args[++i];
+			try {
+				if (option.equals("-clients"))
+					clients = Integer.parseInt(value);
+				else if (option.equals("-duration"))
+					duration = Long.parseLong(value);
+				else if (option.equals("-warmup"))
+					warmup = Long.parseLong(value);
+				else if (option.equals("-mix"))
+					mix = parseInts(value, OPERATION_NAMES.length);
+				else if (option.equals("-files"))
+					files = Integer.parseInt(value);
+				else if (option.equals("-messages"))
+					messages = Integer.parseInt(value);
+				else if (option.equals("-size"))
+					size = Integer.parseInt(value);
+				else if (option.equals("-replicas"))
+					replicas = Integer.parseInt(value);
+				else if (option.equals("-port"))
+					port = Integer.parseInt(value);
+				else if (option.equals("-quorum"))
+					quorum = Integer.parseInt(value);
+				else if (option.equals("-admission"))
+					admission = value.equals("0") ? new int[] { 0, 0 } : parseInts(value, 2);
+				else if (option.equals("-faulty"))
+					faulty = Integer.parseInt(value);
+				else if (option.equals("-delay"))
+					delay = Long.parseLong(value);
+				else if (option.equals("-failures"))
+					failures = Double.parseDouble(value);
+				else if (option.equals("-crash"))
+					crash = Long.parseLong(value);
+				else if (option.equals("-out"))
+					out = value;
+				else
+					throw new IllegalArgumentException("unknown option " + option);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("invalid value of " + option + ": " + value);
+			}
+		}
+
+		int total = 0;
+		for (int weight : mix)
+			total += weight;
+		if (total <= 0)
+			throw new IllegalArgumentException("the operations mix is empty");
+		if (messages < 1)
+			throw new IllegalArgumentException("transactions need at least one message");
+	}
+
+	private static int[] parseInts(String value, int count) {
+		String[] fields = value.split(",");
+		if (fields.length != count)
+			throw new IllegalArgumentException("expected " + count + " comma separated values: " + value);
+
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++)
+			values[i] = Integer.parseInt(fields[i].trim());
+		return values;
+	}
+
+	private void run() throws Exception {
+		PrintStream console = System.out;
+		PrintStream errors = System.err;
+		if (!verbose) {
+			PrintStream discard = new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+			});
+			System.setOut(discard);
+			System.setErr(discard);
+		}
+
+		Topology topology = new Topology(replicas, port);
+		topology.setBinaryLog(binaryLog);
+		try {
+			console.println("starting " + replicas + " replicas, secondary and main server on port " + port);
+			topology.start();
+			configure(topology);
+
+			Worker[] workers = new Worker[clients];
+			for (int i = 0; i < clients; i++) {
+				// rejected calls are counted, not retried by the client
+				Client client = new Client(Topology.HOST, topology.getMainPort());
+				client.setBusyRetries(0);
+				workers[i] = new Worker(i, client, client.getServer());
+			}
+			workers[0].createFiles();
+
+			console.println(String.format("running %d clients for %ds after %ds of warmup", clients, duration, warmup));
+			for (Worker worker : workers)
+				worker.start();
+
+			Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+			measuring = true;
+			long start = System.nanoTime();
+
+			if (crash >= 0 && crash < duration) {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(crash));
+				for (int i = 0; i < Math.min(faulty, replicas); i++)
+					topology.getReplicas()[i].crash();
+				console.println("crashed " + Math.min(faulty, replicas) + " replicas");
+				Thread.sleep(TimeUnit.SECONDS.toMillis(duration - crash));
+			} else {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+			}
+
+			measuring = false;
+			long elapsed = System.nanoTime() - start;
+			stopped = true;
+			for (Worker worker : workers)
+				worker.join();
+
+			report(workers, elapsed, console);
+		} catch (Exception e) {
+			e.printStackTrace(errors);
+			throw e;
+		} finally {
+			System.setOut(console);
+			System.setErr(errors);
+			topology.stop();
+		}
+	}
+
+	private void configure(Topology topology) {
+		MainServer mainServer = topology.getMainServer();
+		mainServer.setWriteQuorum(quorum);
+		if (admission != null)
+			mainServer.setAdmissionLimits(admission[0], admission[1]);
+
+		for (int i = 0; i < Math.min(faulty, replicas); i++) {
+			topology.getReplicas()[i].setDelay(delay);
+			topology.getReplicas()[i].setFailureRate(failures);
+		}
+	}
+
+	private void report(Worker[] workers, long elapsed, PrintStream console) throws IOException {
+		PrintStream csv = out == null ? null : new PrintStream(new FileOutputStream(out));
+		if (csv != null)
+			csv.println("operation,count,errors,busy,throughput,p50_us,p90_us,p99_us,p999_us,max_us");
+
+		double seconds = elapsed / 1e9;
+		console.println();
+		console.println(String.format("%-12s %9s %8s %8s %10s %9s %9s %9s %9s %9s", "operation", "count", "errors",
+				"busy", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		for (int op = 0; op < OPERATION_NAMES.length; op++) {
+			Histogram latencies = new Histogram(3);
+			long errors = 0;
+			long busy = 0;
+			for (Worker worker : workers) {
+				latencies.add(worker.latencies[op]);
+				errors += worker.errors[op];
+				busy += worker.busy[op];
+			}
+
+			long count = latencies.getTotalCount();
+			double throughput = count / seconds;
+			console.println(String.format("%-12s %9d %8d %8d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f", OPERATION_NAMES[op],
+					count, errors, busy, throughput, millis(latencies, 50), millis(latencies, 90),
+					millis(latencies, 99), millis(latencies, 99.9), latencies.getMaxValue() / 1000.0));
+			if (csv != null) {
+				csv.println(String.format("%s,%d,%d,%d,%.1f,%d,%d,%d,%d,%d", OPERATION_NAMES[op], count, errors,
+						busy, throughput, latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(90),
+						latencies.getValueAtPercentile(99), latencies.getValueAtPercentile(99.9),
+						latencies.getMaxValue()));
+			}
+		}
+
+		if (csv != null) {
+			csv.close();
+			console.println("results written to " + out);
+		}
+	}
+
+	private static double millis(Histogram latencies, double percentile) {
+		return latencies.getValueAtPercentile(percentile) / 1000.0;
+	}
+
+	/**
+	 * client running operations until the run is stopped, latencies are
+	 * recorded in microseconds
+	 * */
+	class Worker extends Thread {
+		private Client client;
+		private ServerInterface server;
+		private Random random;
+		private byte[] data;
+
+		// written by this thread only, read once it is joined
+		Histogram[] latencies = new Histogram[OPERATION_NAMES.length];
+		long[] errors = new long[OPERATION_NAMES.length];
+		long[] busy = new long[OPERATION_NAMES.length];
+
+		Worker(int id, Client client, ServerInterface server) {
+			super("load-client-" + id);
+			this.client = client;
+			this.server = server;
+			this.random = new Random(id);
+			this.data = new byte[size];
+			for (int op = 0; op < latencies.length; op++)
+				latencies[op] = new Histogram(3);
+		}
+
+		/**
+		 * writes the first message of every file so they can be read
+		 * */
+		void createFiles() throws Exception {
+			for (int i = 0; i < files; i++)
+				transaction(fileName(i), 1, true);
+			transaction(HOT_FILE, 1, true);
+		}
+
+		@Override
+		public void run() {
+			while (!stopped) {
+				int op = pick();
+				long start = System.nanoTime();
+				boolean succeeded = false;
+				boolean rejected = false;
+				try {
+					succeeded = execute(op);
+				} catch (ServerBusyException e) {
+					rejected = true;
+					try {
+						Thread.sleep(e.getRetryAfter());
+					} catch (InterruptedException ie) {
+						return;
+					}
+				} catch (Exception e) {
+					succeeded = false;
+				}
+				long micros = (System.nanoTime() - start) / 1000;
+
+				if (!measuring)
+					continue;
+				if (rejected)
+					busy[op]++;
+				else if (!succeeded)
+					errors[op]++;
+				else
+					latencies[op].recordValue(micros);
+			}
+		}
+
+		private int pick() {
+			int total = 0;
+			for (int weight : mix)
+				total += weight;
+
+			int draw = random.nextInt(total);
+			for (int op = 0; op < mix.length; op++) {
+				draw -= mix[op];
+				if (draw < 0)
+					return op;
+			}
+			return READ;
+		}
+
+		private boolean execute(int op) throws Exception {
+			switch (op) {
+			case READ:
+				return client.read(fileName(random.nextInt(files))) != null;
+			case TRANSACTION:
+				return transaction(fileName(random.nextInt(files)), messages, true);
+			case ABORT:
+				return transaction(fileName(random.nextInt(files)), Math.max(1, messages / 2), false);
+			default:
+				return transaction(HOT_FILE, messages, true);
+			}
+		}
+
+		/**
+		 * @return true if all the messages were acknowledged and the
+		 *         transaction committed or aborted
+		 * */
+		private boolean transaction(String fileName, int count, boolean commit) throws Exception {
+			long txnID = server.newTxn(fileName);
+			for (int i = 1; i <= count; i++) {
+				if (client.write(txnID, i, data) != ServerInterface.ACK)
+					return false;
+			}
+
+			if (commit)
+				return server.commit(txnID, count) == ServerInterface.ACK;
+			return server.abort(txnID) == ServerInterface.ACK;
+		}
+
+		private String fileName(int i) {
+			return "file-" + i + ".txt";
+		}
+	}
+}
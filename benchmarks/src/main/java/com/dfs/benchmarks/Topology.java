@@ -0,0 +1,127 @@
+package com.dfs.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.dfs.secondary.SecondaryServer;
+import com.dfs.server.MainServer;
+import com.ds.interfaces.ReplicaLocation;
+import com.ds.interfaces.ServerInterface;
+
+/**
+ * Secondary server, main server and replica servers running in this process
+ * on loopback ports, with their directories in a temporary directory. The
+ * secondary server listens on the base port, the main server on the next one
+ * and the replicas on the following ones.
+ * */
+public class Topology {
+	public static final String HOST = "localhost";
+
+	/**
+	 * time given to the secondary server to bind its registry
+	 * */
+	private static final long START_TIMEOUT = 10000;
+
+	private int basePort;
+	private File directory;
+	private FaultyReplicaServer[] replicas;
+	private SecondaryServer secondaryServer;
+	private MainServer mainServer;
+	private boolean binaryLog = false;
+
+	/**
+	 * @param replicas
+	 *            number of replica servers
+	 * @param basePort
+	 *            port of the secondary server
+	 * */
+	public Topology(int replicas, int basePort) {
+		this.replicas = new FaultyReplicaServer[replicas];
+		this.basePort = basePort;
+	}
+
+	/**
+	 * sets whether the main and secondary servers log into binary segments
+	 * instead of the text log, takes effect on start
+	 * */
+	public void setBinaryLog(boolean binaryLog) {
+		this.binaryLog = binaryLog;
+	}
+
+	public void start() throws Exception {
+		directory = Files.createTempDirectory("dfs-load").toFile();
+
+		List<ReplicaLocation> locations = new ArrayList<ReplicaLocation>();
+		for (int i = 0; i < replicas.length; i++) {
+			String name = "replica" + (i + 1);
+			int port = getMainPort() + 1 + i;
+			replicas[i] = new FaultyReplicaServer(HOST, new File(directory, name).getPath());
+			replicas[i].init(name, port);
+			locations.add(new ReplicaLocation(HOST, port, name));
+		}
+
+		// the secondary server waits for the main server, which needs the
+		// secondary server to be bound first
+		secondaryServer = new SecondaryServer(directory("secondary"), directory("takeover"), getMainPort(), binaryLog);
+		Thread secondary = new Thread("secondary-server-init") {
+			@Override
+			public void run() {
+				try {
+					secondaryServer.init(HOST, getMainPort(), basePort);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		secondary.setDaemon(true);
+		secondary.start();
+		awaitSecondaryServer();
+
+		mainServer = new MainServer(HOST, basePort, directory("main"), binaryLog);
+		mainServer.init(getMainPort(), locations);
+	}
+
+	private String directory(String name) {
+		File file = new File(directory, name);
+		file.mkdir();
+		return file.getPath() + "/";
+	}
+
+	private void awaitSecondaryServer() throws Exception {
+		long deadline = System.currentTimeMillis() + START_TIMEOUT;
+		while (true) {
+			try {
+				LocateRegistry.getRegistry(HOST, basePort).lookup(ServerInterface.DFS_SECONDARY_SERVER_UNIQUE_NAME);
+				return;
+			} catch (Exception e) {
+				if (System.currentTimeMillis() > deadline)
+					throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * deletes the directories of the servers, the servers threads are left
+	 * running until the process exits
+	 * */
+	public void stop() {
+		Directories.delete(directory);
+	}
+
+	public int getMainPort() {
+		return basePort + 1;
+	}
+
+	public MainServer getMainServer() {
+		return mainServer;
+	}
+
+	public FaultyReplicaServer[] getReplicas() {
+		return replicas;
+	}
+}
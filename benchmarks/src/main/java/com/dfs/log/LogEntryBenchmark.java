@@ -0,0 +1,55 @@
+package com.dfs.log;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the text log entries replayed on recovery, one entry of each
+ * type.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogEntryBenchmark {
+	@Param({ Logger.TRANSACTION_LOG_ENTRY, Logger.READ_LOG_ENTRY, Logger.WRITE_LOG_ENTRY,
+			Logger.WRITE_BATCH_LOG_ENTRY, Logger.APPEND_LOG_ENTRY })
+	public String type;
+
+	private Logger logger = new Logger();
+	private String line;
+
+	@Setup
+	public void setUp() {
+		String entry;
+		if (type.equals(Logger.TRANSACTION_LOG_ENTRY))
+			entry = "5963072431489025:1:users/profile.txt";
+		else if (type.equals(Logger.READ_LOG_ENTRY))
+			entry = "users/profile.txt";
+		else if (type.equals(Logger.WRITE_LOG_ENTRY))
+			entry = "5963072431489025:17:4096";
+		else if (type.equals(Logger.WRITE_BATCH_LOG_ENTRY))
+			entry = "5963072431489025:1,4096;2,4096;3,4096;4,4096;5,4096;6,4096;7,4096;8,4096";
+		else
+			entry = "5963072431489025:4096:users/profile.txt";
+		line = type + ":1389571200000\t" + entry;
+	}
+
+	@Benchmark
+	public Object parse() {
+		return logger.new LogEntry(line);
+	}
+}
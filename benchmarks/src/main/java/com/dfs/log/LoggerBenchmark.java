@@ -0,0 +1,61 @@
+package com.dfs.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dfs.benchmarks.Directories;
+
+/**
+ * Appending entries to the text log, either handing them to the writer
+ * thread or waiting for them to be forced to disk.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+	@Param({ "false", "true" })
+	public boolean waitForDurability;
+
+	private File directory;
+	private Logger logger;
+	private long txnID = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("dfs-log").toFile();
+		logger = new Logger();
+		logger.init(new File(directory, "log").getPath());
+		logger.setWaitForDurability(waitForDurability);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		logger.closeWriterStream();
+		Directories.delete(directory);
+	}
+
+	@Benchmark
+	public String writeLogEntry() {
+		long id = ++txnID;
+		return logger.writeLogEntry(Logger.WRITE_LOG_ENTRY, id + ":" + (id & 0xff) + ":" + 1024, System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,54 @@
+package com.dfs.server;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing of the messages missing on commit, with every missing'th message of
+ * the transaction not received.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LostMessagesBenchmark {
+	@Param({ "16", "1024", "65536" })
+	public int messages;
+
+	@Param({ "2", "64" })
+	public int missing;
+
+	private long[] received;
+
+	@Setup
+	public void setUp() {
+		int count = 0;
+		long[] ids = new long[messages];
+		for (long id = 1; id <= messages; id++) {
+			if (id % missing != 0)
+				ids[count++] = id;
+		}
+		received = Arrays.copyOf(ids, count);
+	}
+
+	@Benchmark
+	public int[] findLostMessagesIDs() {
+		// the ids are sorted in place, the staging area hands out a new array
+		// on every commit as well
+		return ReplicaServer.findLostMessagesIDs(received.clone(), messages);
+	}
+}
@@ -0,0 +1,76 @@
+package com.dfs.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.rmi.NotBoundException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dfs.benchmarks.Directories;
+import com.ds.interfaces.MessageNotFoundException;
+
+/**
+ * Assembly of a committed file from the staged messages of its transaction,
+ * with the default durability. The messages are staged and the file is
+ * deleted before each commit, so every commit creates its file.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplicaCommitBenchmark {
+	private static final String FILE_NAME = "commit.txt";
+
+	@Param({ "1", "16", "256" })
+	public int messages;
+
+	@Param({ "64", "4096", "65536" })
+	public int size;
+
+	private File directory;
+	private ReplicaServer replica;
+	private byte[] data;
+	private long txnID = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, NotBoundException {
+		directory = Files.createTempDirectory("dfs-replica").toFile();
+		replica = new ReplicaServer("localhost", directory.getPath());
+		data = new byte[size];
+	}
+
+	@Setup(Level.Invocation)
+	public void stage() throws IOException {
+		new File(directory, FILE_NAME).delete();
+		txnID++;
+		for (int i = 1; i <= messages; i++) {
+			replica.write(txnID, i, data);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Directories.delete(directory);
+	}
+
+	@Benchmark
+	public int commit() throws MessageNotFoundException, IOException {
+		return replica.commit(txnID, messages, FILE_NAME);
+	}
+}
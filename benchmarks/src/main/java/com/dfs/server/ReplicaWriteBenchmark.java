@@ -0,0 +1,69 @@
+package com.dfs.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.rmi.NotBoundException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dfs.benchmarks.Directories;
+
+/**
+ * Staging of the messages written to a replica. The transaction is aborted
+ * every MESSAGES_PER_TRANSACTION messages so the staging memory is reused
+ * instead of spilling.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplicaWriteBenchmark {
+	private static final int MESSAGES_PER_TRANSACTION = 64;
+
+	@Param({ "64", "4096", "65536" })
+	public int size;
+
+	private File directory;
+	private ReplicaServer replica;
+	private byte[] data;
+	private long txnID = 1;
+	private long msgSeqNum = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, NotBoundException {
+		directory = Files.createTempDirectory("dfs-replica").toFile();
+		replica = new ReplicaServer("localhost", directory.getPath());
+		data = new byte[size];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		replica.abort(txnID);
+		Directories.delete(directory);
+	}
+
+	@Benchmark
+	public int write() throws IOException {
+		if (msgSeqNum == MESSAGES_PER_TRANSACTION) {
+			replica.abort(txnID++);
+			msgSeqNum = 0;
+		}
+		return replica.write(txnID, ++msgSeqNum, data);
+	}
+}
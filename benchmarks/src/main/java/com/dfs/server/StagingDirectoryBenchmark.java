@@ -0,0 +1,62 @@
+package com.dfs.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dfs.benchmarks.Directories;
+
+/**
+ * Start of a replica staging area over a cache directory holding the spill
+ * segments left by a previous run, which are listed and deleted.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StagingDirectoryBenchmark {
+	@Param({ "100", "10000" })
+	public int segments;
+
+	private File directory;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("dfs-cache").toFile();
+	}
+
+	@Setup(Level.Iteration)
+	public void fill() throws IOException {
+		for (int i = 0; i < segments; i++) {
+			new File(directory, i + ".seg").createNewFile();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Directories.delete(directory);
+	}
+
+	@Benchmark
+	public StagingArea open() {
+		// a single page, so the arena allocation does not hide the scan
+		return new StagingArea(directory, StagingArea.DEFAULT_PAGE_SIZE, StagingArea.DEFAULT_PAGE_SIZE);
+	}
+}
@@ -0,0 +1,294 @@
+package com.dfs.client;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ds.interfaces.MessageNotFoundException;
+import com.ds.interfaces.ServerInterface;
+
+/**
+ * Asynchronous facade of a Client. Every call returns at once with a
+ * CompletableFuture completed by a pool of threads running the remote calls,
+ * so a single application thread can keep many calls in flight.
+ *
+ * The messages of a transaction are numbered automatically and up to window
+ * of them are sent at the same time, the following ones are queued. Commit
+ * waits for all the messages to be sent and retransmits the messages the
+ * server reports missing.
+ *
+ * Calls rejected by a busy server are sent again by the client after the
+ * delay asked by the server, see Client#setBusyRetries. Once the retries are
+ * used up the future completes with the ServerBusyException.
+ * */
+public class AsyncClient {
+	public static final int DEFAULT_THREADS = 16;
+	public static final int DEFAULT_WINDOW = 32;
+
+	/**
+	 * number of times a commit retransmits missing messages before failing
+	 * */
+	public static final int MAX_RETRANSMISSIONS = 3;
+
+	private Client client;
+	private ExecutorService executor;
+	private int window = DEFAULT_WINDOW;
+
+	private AtomicLong retransmittedMessages = new AtomicLong();
+
+	public AsyncClient(Client client) {
+		this(client, DEFAULT_THREADS);
+	}
+
+	/**
+	 * @param threads
+	 *            number of remote calls run at the same time
+	 * */
+	public AsyncClient(Client client, int threads) {
+		this.client = client;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "async-client-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @param window
+	 *            number of messages of a transaction sent at the same time
+	 * */
+	public void setWindow(int window) {
+		this.window = window;
+	}
+
+	/**
+	 * remote call run on the pool
+	 * */
+	private interface Call<T> {
+		T call() throws Exception;
+	}
+
+	private <T> CompletableFuture<T> submit(final Call<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					future.complete(call.call());
+				} catch (Exception e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		return future;
+	}
+
+	public CompletableFuture<String> read(final String fileName) {
+		return submit(new Call<String>() {
+			@Override
+			public String call() throws Exception {
+				return client.read(fileName);
+			}
+		});
+	}
+
+	/**
+	 * @see Client#append(String, String)
+	 * */
+	public CompletableFuture<Integer> append(final String fileName, final String content) {
+		return submit(new Call<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return client.append(fileName, content);
+			}
+		});
+	}
+
+	/**
+	 * starts a new transaction on the file
+	 * */
+	public CompletableFuture<AsyncTransaction> newTxn(final String fileName) {
+		return submit(new Call<AsyncTransaction>() {
+			@Override
+			public AsyncTransaction call() throws Exception {
+				return new AsyncTransaction(client.server.newTxn(fileName));
+			}
+		});
+	}
+
+	/**
+	 * @return number of messages sent again because the server reported them
+	 *         missing on commit
+	 * */
+	public long getRetransmittedMessages() {
+		return retransmittedMessages.get();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * transaction written through the asynchronous client, its methods may be
+	 * called from any thread
+	 * */
+	public class AsyncTransaction {
+		private long txnID;
+		private long lastSeq = 0;
+		private int inFlight = 0;
+		private ArrayDeque<Message> queued = new ArrayDeque<Message>();
+
+		/**
+		 * data of the messages kept until commit for retransmission
+		 * */
+		private HashMap<Long, byte[]> messages = new HashMap<Long, byte[]>();
+
+		/**
+		 * set once commit has been called, sent when the last message is
+		 * acknowledged
+		 * */
+		private CompletableFuture<Integer> commit;
+
+		AsyncTransaction(long txnID) {
+			this.txnID = txnID;
+		}
+
+		public long getTxnID() {
+			return txnID;
+		}
+
+		/**
+		 * sends the data as the next message of the transaction
+		 *
+		 * @return future of the server answer, ACK in case of success
+		 * */
+		public synchronized CompletableFuture<Integer> write(byte[] data) {
+			if (commit != null)
+				throw new IllegalStateException("transaction " + txnID + " is being committed");
+
+			Message message = new Message(++lastSeq, data);
+			messages.put(message.seq, data);
+			if (inFlight < window) {
+				inFlight++;
+				send(message);
+			} else {
+				queued.add(message);
+			}
+			return message.future;
+		}
+
+		private void send(final Message message) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int ack = client.write(txnID, message.seq, message.data);
+						if (ack == ServerInterface.ACK_RSND)
+							ack = client.write(txnID, message.seq, message.data);
+						message.future.complete(ack);
+					} catch (Exception e) {
+						message.future.completeExceptionally(e);
+					} finally {
+						sent();
+					}
+				}
+			});
+		}
+
+		private synchronized void sent() {
+			inFlight--;
+			Message next = queued.poll();
+			if (next != null) {
+				inFlight++;
+				send(next);
+			} else if (inFlight == 0 && commit != null) {
+				sendCommit();
+			}
+		}
+
+		/**
+		 * commits the transaction once all its messages have been sent
+		 *
+		 * @return future of the server answer, ACK in case of success
+		 * */
+		public synchronized CompletableFuture<Integer> commit() {
+			if (commit != null)
+				return commit;
+
+			commit = new CompletableFuture<Integer>();
+			if (inFlight == 0)
+				sendCommit();
+			return commit;
+		}
+
+		private void sendCommit() {
+			final long numOfMsgs = lastSeq;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						commit.complete(commitRetransmitting(numOfMsgs));
+					} catch (Exception e) {
+						commit.completeExceptionally(e);
+					}
+				}
+			});
+		}
+
+		private int commitRetransmitting(long numOfMsgs) throws Exception {
+			for (int attempt = 0;; attempt++) {
+				try {
+					int ack = client.server.commit(txnID, numOfMsgs);
+					synchronized (this) {
+						messages.clear();
+					}
+					return ack;
+				} catch (MessageNotFoundException e) {
+					if (attempt == MAX_RETRANSMISSIONS)
+						throw e;
+
+					for (int seq : e.getMsgNum()) {
+						byte[] data;
+						synchronized (this) {
+							data = messages.get((long) seq);
+						}
+						if (data == null)
+							throw e;
+						client.write(txnID, seq, data);
+						retransmittedMessages.incrementAndGet();
+					}
+				}
+			}
+		}
+
+		public CompletableFuture<Integer> abort() {
+			return submit(new Call<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return client.server.abort(txnID);
+				}
+			});
+		}
+	}
+
+	private static class Message {
+		long seq;
+		byte[] data;
+		CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+		Message(long seq, byte[] data) {
+			this.seq = seq;
+			this.data = data;
+		}
+	}
+}
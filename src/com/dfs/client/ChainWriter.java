@@ -0,0 +1,128 @@
+package com.dfs.client;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.dfs.common.ReplicaStubs;
+import com.ds.interfaces.ReplicaLocation;
+import com.ds.interfaces.ReplicaServerInterface;
+import com.ds.interfaces.ServerBusyException;
+import com.ds.interfaces.ServerInterface;
+
+/**
+ * Writes the messages of transactions to the first replica of the chain
+ * given by the main server, which forwards them along the chain, so the
+ * message data never goes through the main server. If the chain is broken
+ * the message is written through the main server instead.
+ * */
+public class ChainWriter {
+	/**
+	 * time after which the chain of a transaction is asked for again, which
+	 * also keeps the transaction from timing out on the main server
+	 * */
+	public static final long CHAIN_REFRESH = 10000; // 10 seconds
+
+	private static final int MAX_CHAINS = 1024;
+
+	private ReplicaStubs stubs;
+
+	/**
+	 * chains of the recently written transactions
+	 * */
+	private LinkedHashMap<Long, Chain> chains = new LinkedHashMap<Long, Chain>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Chain> eldest) {
+			return size() > MAX_CHAINS;
+		}
+	};
+
+	private long chainedWrites = 0;
+	private long fallbackWrites = 0;
+
+	public ChainWriter(ReplicaStubs stubs) {
+		this.stubs = stubs;
+	}
+
+	/**
+	 * writes the message of the transaction to all the replicas
+	 *
+	 * @return ACK in case of success, ACK_RSND, INVALID_TRANSACTION_ID, or
+	 *         INVALID_OPERATION like ServerInterface.write
+	 * */
+	public int write(ServerInterface server, long txnID, long msgSeqNum, byte[] data)
+			throws RemoteException, IOException, ServerBusyException {
+		ReplicaLocation[] chain = chain(server, txnID);
+		if (chain == null)
+			return ServerInterface.INVALID_TRANSACTION_ID;
+
+		ReplicaServerInterface head = chain.length == 0 ? null : stubs.get(chain[0]);
+		if (head != null) {
+			try {
+				int ack = head.chainWrite(txnID, msgSeqNum, data, Arrays.copyOfRange(chain, 1, chain.length));
+				synchronized (this) {
+					chainedWrites++;
+				}
+				return ack;
+			} catch (RemoteException e) {
+				stubs.evict(chain[0]);
+				synchronized (this) {
+					chains.remove(txnID);
+				}
+				System.err.println("write chain of transaction " + txnID + " is broken: " + e.getMessage());
+			}
+		}
+
+		synchronized (this) {
+			fallbackWrites++;
+		}
+		return server.write(txnID, msgSeqNum, data);
+	}
+
+	private ReplicaLocation[] chain(ServerInterface server, long txnID) throws RemoteException, ServerBusyException {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Chain chain = chains.get(txnID);
+			if (chain != null && now - chain.time < CHAIN_REFRESH)
+				return chain.locations;
+		}
+
+		ReplicaLocation[] locations = server.writeChain(txnID);
+		synchronized (this) {
+			if (locations == null)
+				chains.remove(txnID);
+			else
+				chains.put(txnID, new Chain(locations, now));
+		}
+		return locations;
+	}
+
+	/**
+	 * @return number of messages written through a chain of replicas
+	 * */
+	public synchronized long getChainedWrites() {
+		return chainedWrites;
+	}
+
+	/**
+	 * @return number of messages written through the main server because
+	 *         their chain was broken
+	 * */
+	public synchronized long getFallbackWrites() {
+		return fallbackWrites;
+	}
+
+	class Chain {
+		ReplicaLocation[] locations;
+		long time;
+
+		Chain(ReplicaLocation[] locations, long time) {
+			this.locations = locations;
+			this.time = time;
+		}
+	}
+}
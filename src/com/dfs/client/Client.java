@@ -2,25 +2,65 @@ package com.dfs.client;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 
+import com.dfs.common.ReplicaStubs;
 import com.ds.interfaces.ClientInterface;
+import com.ds.interfaces.FileContents;
 import com.ds.interfaces.MessageNotFoundException;
+import com.ds.interfaces.ReplicaLocation;
+import com.ds.interfaces.ServerBusyException;
 import com.ds.interfaces.ServerInterface;
 
 public class Client implements ClientInterface {
+	public static final int DEFAULT_BUSY_RETRIES = 3;
+
 	private String auth_token;
 	private String hostIP;
 	ServerInterface server;
 	int port;
 
+	/**
+	 * files read by this client, revalidated with conditional reads
+	 * */
+	private FileCache cache = new FileCache();
+
+	/**
+	 * stubs of the replicas used by direct reads and chained writes
+	 * */
+	private ReplicaStubs replicaStubs = new ReplicaStubs();
+
+	/**
+	 * reads files from the replicas directly, the main server only tells
+	 * where they are, null when reading through the main server which is the
+	 * default
+	 * */
+	private volatile ReplicaReader replicaReader;
+
+	/**
+	 * writes messages along a chain of replicas, null when writing through
+	 * the main server
+	 * */
+	private volatile ChainWriter chainWriter;
+
+	/**
+	 * number of times a call rejected by a busy server is sent again
+	 * */
+	private volatile int busyRetries = DEFAULT_BUSY_RETRIES;
+
 	public Client(String serverHostIP, int port) throws RemoteException,
 			NotBoundException {
 		this.hostIP = serverHostIP;
@@ -32,6 +72,7 @@ public class Client implements ClientInterface {
 
 		UnicastRemoteObject.exportObject(this, 5412);
 		server.registerClient(this);
+		server = connect(server);
 	}
 
 	@Override
@@ -41,13 +82,60 @@ public class Client implements ClientInterface {
 
 		try {
 			Registry reg = LocateRegistry.getRegistry(hostIP, port);
-			server = (ServerInterface) reg
-					.lookup(ServerInterface.DFSERVER_UNIQUE_NAME);
+			server = connect((ServerInterface) reg
+					.lookup(ServerInterface.DFSERVER_UNIQUE_NAME));
 		} catch (NotBoundException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * opens the session of this client on the server, so its calls are
+	 * counted against its own quota, and wraps it to send the calls rejected
+	 * by a busy server again after the delay asked by the server. A session
+	 * the server has closed, e.g. after losing track of this client, is
+	 * opened again.
+	 * */
+	private ServerInterface connect(final ServerInterface stub) throws RemoteException {
+		ServerInterface session = stub.openSession(this);
+		final ServerInterface opened = session == null ? stub : session;
+
+		return (ServerInterface) Proxy.newProxyInstance(ServerInterface.class.getClassLoader(),
+				new Class<?>[] { ServerInterface.class }, new InvocationHandler() {
+					private volatile ServerInterface target = opened;
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						boolean reopened = false;
+						int attempt = 0;
+						while (true) {
+							ServerInterface current = target;
+							try {
+								return method.invoke(current, args);
+							} catch (InvocationTargetException e) {
+								Throwable cause = e.getCause();
+								if (cause instanceof NoSuchObjectException && current != stub && !reopened) {
+									ServerInterface session = stub.openSession(Client.this);
+									target = session == null ? stub : session;
+									reopened = true;
+									continue;
+								}
+
+								if (!(cause instanceof ServerBusyException) || attempt++ >= busyRetries)
+									throw cause;
+
+								try {
+									Thread.sleep(((ServerBusyException) cause).getRetryAfter());
+								} catch (InterruptedException ie) {
+									Thread.currentThread().interrupt();
+									throw cause;
+								}
+							}
+						}
+					}
+				});
+	}
+
 	@Override
 	public void setAuthenticationToken(String auth_token)
 			throws RemoteException {
@@ -59,21 +147,164 @@ public class Client implements ClientInterface {
 		return this.auth_token;
 	}
 
+	/**
+	 * reads the file, a cached file is only transferred again if it has been
+	 * modified since it was cached
+	 * */
 	public String read(String fileName) throws FileNotFoundException,
-			RemoteException, IOException {
-		byte[] content = server.read(fileName).get();
-		return new String(content);
+			RemoteException, IOException, ServerBusyException {
+		FileCache.CachedFile cached = cache.get(fileName);
+		FileContents contents = fetch(fileName, cached == null ? -1 : cached.getVersion());
+		if (!contents.isModified()) {
+			cache.hit();
+			return new String(cached.getContents());
+		}
+
+		cache.miss();
+		cache.put(fileName, contents.getVersion(), contents.get());
+		return new String(contents.get());
+	}
+
+	/**
+	 * reads the file if its version is greater than the given one, from a
+	 * replica when direct reads are enabled and through the main server
+	 * otherwise or if no replica can be reached
+	 * */
+	private FileContents fetch(String fileName, long version) throws FileNotFoundException,
+			RemoteException, IOException, ServerBusyException {
+		ReplicaReader reader = replicaReader;
+		if (reader != null) {
+			ReplicaLocation[] locations = server.lookup(fileName);
+			try {
+				return reader.readIfModified(locations, fileName, version);
+			} catch (RemoteException e) {
+				// no replica could answer, the main server may reach them
+			}
+		}
+
+		if (version < 0)
+			return server.read(fileName);
+		return server.readIfModified(fileName, version);
+	}
+
+	/**
+	 * Direct reads do not take the file lock on the main server, so a read
+	 * running with a commit of the file may see only a part of the committed
+	 * data. They are disabled by default.
+	 * 
+	 * @param directReads
+	 *            true to read the files from the replicas directly, false to
+	 *            read them through the main server
+	 * */
+	public void setDirectReads(boolean directReads) {
+		this.replicaReader = directReads ? new ReplicaReader(replicaStubs) : null;
+	}
+
+	/**
+	 * @param busyRetries
+	 *            number of times a call rejected by a busy server is sent
+	 *            again after the delay asked by the server, 0 to throw the
+	 *            ServerBusyException at once
+	 * */
+	public void setBusyRetries(int busyRetries) {
+		this.busyRetries = busyRetries;
+	}
+
+	/**
+	 * @return the server called by this client, through its session
+	 * */
+	public ServerInterface getServer() {
+		return server;
+	}
+
+	/**
+	 * @return reader of the direct reads, or null if they are disabled
+	 * */
+	public ReplicaReader getReplicaReader() {
+		return replicaReader;
+	}
+
+	public FileCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * reads the file in chunks of at most chunkSize bytes, this should be used
+	 * for files that do not fit in memory
+	 * */
+	public Iterator<byte[]> readChunks(String fileName, int chunkSize) {
+		return new FileChunkIterator(server, fileName, chunkSize);
 	}
 
 	public long write(String fileName, String content)
-			throws RemoteException, IOException, MessageNotFoundException {
+			throws RemoteException, IOException, MessageNotFoundException, ServerBusyException {
 		long txid = server.newTxn(fileName);
-		server.write(txid, 1, content.getBytes());
+		write(txid, 1, content.getBytes());
 		return txid;
 	}
 
+	/**
+	 * appends the content to the file in a single round trip, this is the
+	 * cheapest way to write small files
+	 * 
+	 * @return ACK in case of success, LOCK_TIMEOUT, or INVALID_OPERATION
+	 * */
+	public int append(String fileName, String content) throws RemoteException, IOException, ServerBusyException {
+		return server.append(fileName, content.getBytes());
+	}
+
+	/**
+	 * writes a message of the transaction, along the replicas chain when
+	 * chained writes are enabled and through the main server otherwise
+	 * 
+	 * @return ACK in case of success, ACK_RSND, INVALID_TRANSACTION_ID, or
+	 *         INVALID_OPERATION
+	 * */
+	public int write(long txnID, long msgSeqNum, byte[] data) throws RemoteException, IOException, ServerBusyException {
+		ChainWriter writer = chainWriter;
+		if (writer != null)
+			return writer.write(server, txnID, msgSeqNum, data);
+		return server.write(txnID, msgSeqNum, data);
+	}
+
+	/**
+	 * writes many messages of the transaction in one round trip, chained
+	 * writes send them one by one along the chain
+	 * 
+	 * @return ACK in case of success, ACK_RSND, INVALID_TRANSACTION_ID, or
+	 *         INVALID_OPERATION
+	 * */
+	public int write(long txnID, long[] msgSeqNums, byte[][] data) throws RemoteException, IOException, ServerBusyException {
+		ChainWriter writer = chainWriter;
+		if (writer == null)
+			return server.writeBatch(txnID, msgSeqNums, data);
+
+		for (int i = 0; i < msgSeqNums.length; i++) {
+			int ack = writer.write(server, txnID, msgSeqNums[i], data[i]);
+			if (ack != ServerInterface.ACK)
+				return ack;
+		}
+		return ServerInterface.ACK;
+	}
+
+	/**
+	 * @param chainWrites
+	 *            true to send the messages to the replicas along a chain, so
+	 *            their data does not go through the main server
+	 * */
+	public void setChainWrites(boolean chainWrites) {
+		this.chainWriter = chainWrites ? new ChainWriter(replicaStubs) : null;
+	}
+
+	/**
+	 * @return writer of the chained writes, or null if they are disabled
+	 * */
+	public ChainWriter getChainWriter() {
+		return chainWriter;
+	}
+
 	public static void main(String[] args) throws NotBoundException,
-			FileNotFoundException, IOException, MessageNotFoundException, InterruptedException {
+			FileNotFoundException, IOException, MessageNotFoundException, InterruptedException, ServerBusyException {
 		Client c = new Client("localhost", 5555); // 5892
 		long txid = c.server.newTxn("mashary.txt");
 		
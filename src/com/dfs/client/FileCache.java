@@ -0,0 +1,127 @@
+package com.dfs.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of file contents read by the client, each file is cached with
+ * the version it has been read at. The cache is bounded by the total size of
+ * the cached contents, the least recently read files are evicted first.
+ * */
+public class FileCache {
+	public static final long DEFAULT_CAPACITY = 16 * 1024 * 1024; // 16 MB
+
+	private long capacity;
+	private long size = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * cached files in access order
+	 * */
+	private LinkedHashMap<String, CachedFile> files = new LinkedHashMap<String, CachedFile>(16, 0.75f, true);
+
+	public FileCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of bytes cached
+	 * */
+	public FileCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the cached file or null
+	 * */
+	public synchronized CachedFile get(String fileName) {
+		return files.get(fileName);
+	}
+
+	/**
+	 * caches the contents of the file unless a newer version is cached
+	 * already, files larger than the cache are not cached
+	 * */
+	public synchronized void put(String fileName, long version, byte[] contents) {
+		CachedFile old = files.get(fileName);
+		if (old != null) {
+			if (old.version > version)
+				return;
+			files.remove(fileName);
+			size -= old.contents.length;
+		}
+
+		if (contents.length > capacity)
+			return;
+
+		files.put(fileName, new CachedFile(version, contents));
+		size += contents.length;
+
+		Iterator<Map.Entry<String, CachedFile>> it = files.entrySet().iterator();
+		while (size > capacity && it.hasNext()) {
+			size -= it.next().getValue().contents.length;
+			it.remove();
+		}
+	}
+
+	public synchronized void invalidate(String fileName) {
+		CachedFile old = files.remove(fileName);
+		if (old != null)
+			size -= old.contents.length;
+	}
+
+	synchronized void hit() {
+		hits++;
+	}
+
+	synchronized void miss() {
+		misses++;
+	}
+
+	/**
+	 * @return number of reads answered from the cache after the server
+	 *         confirmed the file has not been modified
+	 * */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return number of reads that transferred the file from the server
+	 * */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return number of cached bytes
+	 * */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized String toString() {
+		return String.format("files=%d bytes=%d hits=%d misses=%d", files.size(), size, hits, misses);
+	}
+
+	public static class CachedFile {
+		private long version;
+		private byte[] contents;
+
+		CachedFile(long version, byte[] contents) {
+			this.version = version;
+			this.contents = contents;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public byte[] getContents() {
+			return contents;
+		}
+	}
+}
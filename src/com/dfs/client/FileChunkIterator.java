@@ -0,0 +1,82 @@
+package com.dfs.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.ds.interfaces.ServerBusyException;
+import com.ds.interfaces.ServerInterface;
+
+/**
+ * Iterates over a file stored on the server chunk by chunk using ranged
+ * reads, so only one chunk of the file is held in memory at a time.
+ *
+ * Read failures are thrown as unchecked exceptions, a chunk rejected by a
+ * busy server is thrown as an IllegalStateException and hasNext may be
+ * called again to retry it.
+ * */
+public class FileChunkIterator implements Iterator<byte[]> {
+	private ServerInterface server;
+	private String fileName;
+	private int chunkSize;
+
+	/**
+	 * position in the file of the next chunk to be read
+	 * */
+	private long offset = 0;
+	private byte[] next;
+	private boolean finished = false;
+
+	public FileChunkIterator(ServerInterface server, String fileName, int chunkSize) {
+		this.server = server;
+		this.fileName = fileName;
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next != null)
+			return true;
+		if (finished)
+			return false;
+
+		try {
+			byte[] chunk = server.read(fileName, offset, chunkSize).get();
+			if (chunk.length == 0) {
+				finished = true;
+				return false;
+			}
+
+			offset += chunk.length;
+			next = chunk;
+			return true;
+		} catch (IOException e) {
+			throw new UncheckedIOException("unable to read " + fileName + " at offset " + offset, e);
+		} catch (ServerBusyException e) {
+			throw new IllegalStateException("server is busy, unable to read " + fileName + " at offset " + offset, e);
+		}
+	}
+
+	@Override
+	public byte[] next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		byte[] chunk = next;
+		next = null;
+		return chunk;
+	}
+
+	/**
+	 * @return number of bytes of the file that have been read so far
+	 * */
+	public long getOffset() {
+		return offset;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,74 @@
+package com.dfs.client;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.dfs.common.Hedger;
+import com.dfs.common.ReplicaSelector;
+import com.dfs.common.ReplicaStubs;
+import com.ds.interfaces.FileContents;
+import com.ds.interfaces.ReplicaLocation;
+import com.ds.interfaces.ReplicaServerInterface;
+
+/**
+ * Reads files from the replicas directly at the locations handed out by the
+ * main server. The replica of each read is chosen by latency and load like
+ * the main server does, and reads may be hedged on a second replica.
+ * */
+public class ReplicaReader {
+	private ReplicaStubs stubs;
+	private ReplicaSelector<ReplicaLocation> selector = new ReplicaSelector<ReplicaLocation>();
+	private Hedger<ReplicaLocation> hedger = new Hedger<ReplicaLocation>(selector);
+	private boolean hedgedReads = false;
+
+	public ReplicaReader(ReplicaStubs stubs) {
+		this.stubs = stubs;
+	}
+
+	/**
+	 * reads the file from one of the replicas if its version is greater than
+	 * the given one, see ServerInterface.readIfModified
+	 *
+	 * @return the file contents
+	 * @throws RemoteException
+	 *             if no replica could answer
+	 * */
+	public FileContents readIfModified(ReplicaLocation[] locations, final String fileName, final long version)
+			throws FileNotFoundException, IOException {
+		Hedger.Request<ReplicaLocation, FileContents, IOException> request = new Hedger.Request<ReplicaLocation, FileContents, IOException>() {
+			@Override
+			public FileContents call(ReplicaLocation location) throws IOException {
+				ReplicaServerInterface replica = stubs.get(location);
+				if (replica == null)
+					return null;
+
+				try {
+					return replica.readIfModified(fileName, version);
+				} catch (RemoteException e) {
+					stubs.evict(location);
+					throw e;
+				}
+			}
+		};
+
+		List<ReplicaLocation> candidates = Arrays.asList(locations);
+		if (hedgedReads)
+			return hedger.invoke(candidates, request);
+		return selector.invoke(candidates, request);
+	}
+
+	public void setHedgedReads(boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+	}
+
+	public ReplicaSelector<ReplicaLocation> getSelector() {
+		return selector;
+	}
+
+	public Hedger<ReplicaLocation> getHedger() {
+		return hedger;
+	}
+}
@@ -0,0 +1,343 @@
+package com.dfs.common;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a read to the replica chosen by a ReplicaSelector, and if it has not
+ * answered within the given percentile of the recent read latencies sends it
+ * to a second replica too. The first answer wins, the other request is left
+ * to complete in the background.
+ *
+ * Hedges are paid from a budget earned by the reads themselves: each read
+ * adds budgetRatio to the budget and each hedge takes one from it, so hedging
+ * adds at most that share of extra load to the replicas, even when all of
+ * them slow down together.
+ *
+ * Reads run on a bounded pool of threads. When all of them are busy, reads
+ * run on the calling thread without hedging.
+ *
+ * @param <K>
+ *            replica key
+ * */
+public class Hedger<K> {
+	public static final double DEFAULT_PERCENTILE = 0.95;
+	public static final double DEFAULT_BUDGET_RATIO = 0.1;
+	public static final long DEFAULT_MIN_DELAY = 1000000; // 1 ms
+	public static final int DEFAULT_MAX_THREADS = 64;
+
+	/**
+	 * hedges that can be saved up while reads are fast
+	 * */
+	private static final double MAX_BUDGET = 100;
+
+	/**
+	 * read sent to one replica. An answer of the replica, including an
+	 * exception it has thrown, ends the read. A null result or a
+	 * RemoteException means the replica could not answer.
+	 * */
+	public interface Request<K, T, E extends Exception> {
+		T call(K replica) throws RemoteException, E;
+	}
+
+	private ReplicaSelector<K> selector;
+	private LatencyTracker latencies = new LatencyTracker();
+	private ThreadPoolExecutor executor;
+
+	private double percentile = DEFAULT_PERCENTILE;
+	private double budgetRatio = DEFAULT_BUDGET_RATIO;
+	private long minDelay = DEFAULT_MIN_DELAY;
+
+	private double budget = 0;
+	private AtomicLong requests = new AtomicLong();
+	private AtomicLong hedges = new AtomicLong();
+	private AtomicLong hedgeWins = new AtomicLong();
+	private AtomicLong budgetExhausted = new AtomicLong();
+	private AtomicLong saturated = new AtomicLong();
+
+	public Hedger(ReplicaSelector<K> selector) {
+		this.selector = selector;
+
+		// reads run on their own threads so the waiting thread can give up on
+		// a slow replica, threads are created on demand and kept for a minute
+		this.executor = new ThreadPoolExecutor(0, DEFAULT_MAX_THREADS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					private AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "hedged-read-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * runs the request on the replica chosen among the candidates, hedging it
+	 * on a second one if the first one is slow or fails. If neither of them
+	 * could answer, the other candidates are tried one after the other.
+	 *
+	 * @return the first answer
+	 * @throws RemoteException
+	 *             if no replica could answer
+	 * */
+	public <T, E extends Exception> T invoke(List<K> candidates, Request<K, T, E> request)
+			throws RemoteException, E {
+		requests.incrementAndGet();
+		synchronized (this) {
+			budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+		}
+
+		K primary = selector.select(candidates);
+		if (primary == null)
+			throw new RemoteException("no replica to read from");
+
+		HedgedRead<T, E> read = new HedgedRead<T, E>(request);
+		if (!read.execute(primary, false)) {
+			saturated.incrementAndGet();
+			return selector.invoke(candidates, request);
+		}
+		List<K> remaining = ReplicaSelector.without(candidates, primary);
+
+		long delay = latencies.getPercentile(percentile);
+		if (delay < minDelay)
+			delay = minDelay;
+
+		if (!read.await(delay)) {
+			K secondary = selector.select(remaining);
+			if (secondary != null) {
+				if (!takeBudget()) {
+					budgetExhausted.incrementAndGet();
+				} else if (!read.execute(secondary, true)) {
+					saturated.incrementAndGet();
+				} else {
+					hedges.incrementAndGet();
+					remaining = ReplicaSelector.without(remaining, secondary);
+				}
+			}
+		}
+
+		if (read.finish())
+			return read.get();
+		if (remaining.isEmpty())
+			throw read.unreachable();
+		return selector.invoke(remaining, request);
+	}
+
+	private synchronized boolean takeBudget() {
+		if (budget < 1)
+			return false;
+		budget--;
+		return true;
+	}
+
+	/**
+	 * @param maxThreads
+	 *            maximum number of reads running on the pool at once
+	 * */
+	public void setMaxThreads(int maxThreads) {
+		executor.setMaximumPoolSize(maxThreads);
+	}
+
+	public void setPercentile(double percentile) {
+		this.percentile = percentile;
+	}
+
+	public void setBudgetRatio(double budgetRatio) {
+		this.budgetRatio = budgetRatio;
+	}
+
+	/**
+	 * @param minDelay
+	 *            shortest time in nanoseconds to wait before hedging
+	 * */
+	public void setMinDelay(long minDelay) {
+		this.minDelay = minDelay;
+	}
+
+	public LatencyTracker getLatencies() {
+		return latencies;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return number of reads sent to a second replica
+	 * */
+	public long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * @return number of reads answered first by the second replica
+	 * */
+	public long getHedgeWins() {
+		return hedgeWins.get();
+	}
+
+	/**
+	 * @return number of reads that were not hedged because the budget was
+	 *         used up
+	 * */
+	public long getBudgetExhausted() {
+		return budgetExhausted.get();
+	}
+
+	/**
+	 * @return number of reads run or hedged without a thread of the pool
+	 *         because all of them were busy
+	 * */
+	public long getSaturated() {
+		return saturated.get();
+	}
+
+	public String toString() {
+		return String.format("requests=%d hedges=%d wins=%d exhausted=%d saturated=%d p%.0f=%.3fms", requests.get(),
+				hedges.get(), hedgeWins.get(), budgetExhausted.get(), saturated.get(), percentile * 100,
+				latencies.getPercentile(percentile) / 1e6);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * state of one read, shared by the requests sent to the replicas and the
+	 * thread waiting for the answer
+	 * */
+	private class HedgedRead<T, E extends Exception> {
+		Request<K, T, E> request;
+		int pending = 0;
+		boolean answered = false;
+		T result;
+		Exception failure;
+
+		HedgedRead(Request<K, T, E> request) {
+			this.request = request;
+		}
+
+		/**
+		 * runs the request on the replica on a thread of the pool
+		 *
+		 * @return false if all the threads of the pool are busy
+		 * */
+		boolean execute(K replica, boolean hedge) {
+			synchronized (this) {
+				pending++;
+			}
+			try {
+				executor.execute(task(replica, hedge));
+				return true;
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					pending--;
+				}
+				return false;
+			}
+		}
+
+		Runnable task(final K replica, final boolean hedge) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					long start = selector.begin(replica);
+					T value = null;
+					Exception error = null;
+					try {
+						value = request.call(replica);
+					} catch (Exception e) {
+						error = e;
+					}
+					long latency = System.nanoTime() - start;
+
+					boolean reached = value != null || (error != null && !(error instanceof RemoteException));
+					selector.complete(replica, start, reached);
+					if (reached)
+						latencies.record(latency);
+					onDone(value, error, reached, hedge);
+				}
+			};
+		}
+
+		synchronized void onDone(T value, Exception error, boolean reached, boolean hedge) {
+			pending--;
+			if (!answered && reached) {
+				answered = true;
+				result = value;
+				failure = error;
+				if (hedge)
+					hedgeWins.incrementAndGet();
+			} else if (!answered && failure == null) {
+				failure = error;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * @return true if the read has been answered within the delay, false
+		 *         if it is still running or has failed and has to be hedged
+		 * */
+		synchronized boolean await(long delayNanos) throws RemoteException {
+			long deadline = System.nanoTime() + delayNanos;
+			while (!answered) {
+				// a failed replica is hedged right away
+				if (pending == 0)
+					return false;
+
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RemoteException("interrupted while waiting for replicas", e);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * waits until a replica has answered or all the requests are done
+		 *
+		 * @return false if none of the replicas could answer
+		 * */
+		synchronized boolean finish() throws RemoteException {
+			while (!answered && pending > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RemoteException("interrupted while waiting for replicas", e);
+				}
+			}
+			return answered;
+		}
+
+		/**
+		 * @return the answer of the replica, called once finish returned true
+		 * */
+		@SuppressWarnings("unchecked")
+		synchronized T get() throws E {
+			if (failure == null)
+				return result;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			throw (E) failure;
+		}
+
+		synchronized RemoteException unreachable() {
+			return new RemoteException("no replica could answer", failure);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.dfs.common;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the last WINDOW requests and answers percentiles
+ * over them. Percentiles are recomputed from a sorted copy of the window once
+ * every REFRESH_INTERVAL samples, so reading them is cheap and they follow
+ * the current latency of the replicas.
+ * */
+public class LatencyTracker {
+	public static final int DEFAULT_WINDOW = 1024;
+
+	private static final int REFRESH_INTERVAL = 64;
+
+	private long[] samples;
+	private int count = 0;
+	private int next = 0;
+
+	/**
+	 * sorted copy of the window, null when it has to be recomputed
+	 * */
+	private long[] sorted;
+	private int sinceSort = 0;
+
+	public LatencyTracker() {
+		this(DEFAULT_WINDOW);
+	}
+
+	public LatencyTracker(int window) {
+		this.samples = new long[window];
+	}
+
+	public synchronized void record(long nanos) {
+		samples[next] = nanos;
+		next = (next + 1) % samples.length;
+		if (count < samples.length)
+			count++;
+
+		if (++sinceSort >= REFRESH_INTERVAL)
+			sorted = null;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 1
+	 * @return latency in nanoseconds under which this share of the recorded
+	 *         requests completed, or -1 if nothing has been recorded yet
+	 * */
+	public synchronized long getPercentile(double percentile) {
+		if (count == 0)
+			return -1;
+
+		if (sorted == null) {
+			sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			sinceSort = 0;
+		}
+
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+}
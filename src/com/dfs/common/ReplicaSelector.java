@@ -0,0 +1,273 @@
+package com.dfs.common;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the replica to send a request to from the latency and load observed
+ * on each replica. Two replicas are drawn at random and the one with the
+ * lower expected cost, its moving average latency times its outstanding
+ * requests, is chosen (power of two choices), which keeps a slow or busy
+ * replica from taking its full share of the requests without herding all of
+ * them on the fastest one.
+ *
+ * A replica failing EJECTION_THRESHOLD times in a row is ejected for the
+ * cool-down, after which it is chosen again and ejected on its first failure
+ * until it succeeds once.
+ *
+ * @param <K>
+ *            replica key
+ * */
+public class ReplicaSelector<K> {
+	public static final double DEFAULT_EWMA_WEIGHT = 0.2;
+	public static final int DEFAULT_EJECTION_THRESHOLD = 3;
+	public static final long DEFAULT_COOL_DOWN = 5000; // 5 seconds
+
+	/**
+	 * latency assumed for replicas with no completed request yet
+	 * */
+	private static final long INITIAL_LATENCY_NANOS = 1000000; // 1 ms
+
+	private ConcurrentHashMap<K, ReplicaState> states = new ConcurrentHashMap<K, ReplicaState>();
+	private Random random = new Random();
+
+	private double ewmaWeight = DEFAULT_EWMA_WEIGHT;
+	private int ejectionThreshold = DEFAULT_EJECTION_THRESHOLD;
+	private long coolDown = DEFAULT_COOL_DOWN;
+
+	/**
+	 * @return the replica to send the next request to, or null if there are
+	 *         no candidates
+	 * */
+	public K select(List<K> candidates) {
+		int n = candidates.size();
+		if (n == 0)
+			return null;
+		if (n == 1)
+			return candidates.get(0);
+
+		long now = System.currentTimeMillis();
+		int first = random.nextInt(n);
+		int second = random.nextInt(n - 1);
+		if (second >= first)
+			second++;
+
+		K a = candidates.get(first);
+		K b = candidates.get(second);
+		boolean aEjected = state(a).isEjected(now);
+		boolean bEjected = state(b).isEjected(now);
+
+		if (aEjected && bEjected) {
+			// look for any replica still in service before falling back to an
+			// ejected one
+			for (int i = 0; i < n; i++) {
+				K k = candidates.get((first + i) % n);
+				if (!state(k).isEjected(now))
+					return k;
+			}
+			return state(a).ejectedUntil <= state(b).ejectedUntil ? a : b;
+		}
+		if (aEjected)
+			return b;
+		if (bEjected)
+			return a;
+
+		return state(a).cost() <= state(b).cost() ? a : b;
+	}
+
+	/**
+	 * runs the request on the replica chosen among the candidates and
+	 * records its latency or failure, see Hedger.Request for what counts as a
+	 * failure. A replica that could not answer is left out and the request is
+	 * sent to the one chosen among the remaining candidates.
+	 *
+	 * @return the replica answer
+	 * @throws RemoteException
+	 *             if none of the candidates could answer
+	 * */
+	public <T, E extends Exception> T invoke(List<K> candidates, Hedger.Request<K, T, E> request)
+			throws RemoteException, E {
+		List<K> remaining = candidates;
+		RemoteException failure = null;
+		while (!remaining.isEmpty()) {
+			K replica = select(remaining);
+			long start = begin(replica);
+			boolean succeeded = false;
+			try {
+				T result = request.call(replica);
+				if (result != null) {
+					succeeded = true;
+					return result;
+				}
+			} catch (RemoteException e) {
+				failure = e;
+			} catch (Exception e) {
+				succeeded = true;
+				throw e;
+			} finally {
+				complete(replica, start, succeeded);
+			}
+			remaining = without(remaining, replica);
+		}
+		throw new RemoteException("no replica could answer", failure);
+	}
+
+	/**
+	 * @return the candidates other than the given replica
+	 * */
+	static <K> List<K> without(List<K> candidates, K replica) {
+		List<K> others = new ArrayList<K>(candidates.size());
+		for (K k : candidates) {
+			if (!k.equals(replica))
+				others.add(k);
+		}
+		return others;
+	}
+
+	/**
+	 * marks the start of a request on the replica
+	 *
+	 * @return start time to be passed to complete
+	 * */
+	public long begin(K replica) {
+		state(replica).inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * marks the end of a request started with begin
+	 *
+	 * @param succeeded
+	 *            false if the replica could not be reached or failed to answer
+	 * */
+	public void complete(K replica, long start, boolean succeeded) {
+		ReplicaState state = state(replica);
+		state.inFlight.decrementAndGet();
+
+		long latency = System.nanoTime() - start;
+		synchronized (state) {
+			if (succeeded) {
+				state.ewma = state.samples == 0 ? latency
+						: (long) (ewmaWeight * latency + (1 - ewmaWeight) * state.ewma);
+				state.samples++;
+				state.failures = 0;
+				state.probation = false;
+			} else {
+				state.failures++;
+				state.totalFailures++;
+				if (state.probation || state.failures >= ejectionThreshold) {
+					state.ejectedUntil = System.currentTimeMillis() + coolDown;
+					state.probation = true;
+					state.ejections++;
+				}
+			}
+		}
+	}
+
+	private ReplicaState state(K replica) {
+		ReplicaState state = states.get(replica);
+		if (state == null) {
+			ReplicaState created = new ReplicaState();
+			state = states.putIfAbsent(replica, created);
+			if (state == null)
+				state = created;
+		}
+		return state;
+	}
+
+	public void setEwmaWeight(double ewmaWeight) {
+		this.ewmaWeight = ewmaWeight;
+	}
+
+	public void setEjectionThreshold(int ejectionThreshold) {
+		this.ejectionThreshold = ejectionThreshold;
+	}
+
+	public void setCoolDown(long coolDown) {
+		this.coolDown = coolDown;
+	}
+
+	/**
+	 * @return moving average latency of the replica in nanoseconds
+	 * */
+	public long getLatency(K replica) {
+		ReplicaState state = states.get(replica);
+		if (state == null)
+			return 0;
+		synchronized (state) {
+			return state.ewma;
+		}
+	}
+
+	/**
+	 * @return number of requests currently outstanding on the replica
+	 * */
+	public int getInFlight(K replica) {
+		ReplicaState state = states.get(replica);
+		return state == null ? 0 : state.inFlight.get();
+	}
+
+	public boolean isEjected(K replica) {
+		ReplicaState state = states.get(replica);
+		return state != null && state.isEjected(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return number of times the replica has been ejected
+	 * */
+	public long getEjections(K replica) {
+		ReplicaState state = states.get(replica);
+		if (state == null)
+			return 0;
+		synchronized (state) {
+			return state.ejections;
+		}
+	}
+
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<K, ReplicaState> entry : states.entrySet()) {
+			ReplicaState state = entry.getValue();
+			synchronized (state) {
+				builder.append(String.format("%s: latency=%.3fms inflight=%d failures=%d ejections=%d%s%n",
+						entry.getKey(), state.ewma / 1e6, state.inFlight.get(), state.totalFailures,
+						state.ejections, state.isEjected(now) ? " ejected" : ""));
+			}
+		}
+		return builder.toString();
+	}
+
+	class ReplicaState {
+		AtomicInteger inFlight = new AtomicInteger();
+
+		// guarded by this
+		long ewma = 0;
+		long samples = 0;
+		int failures = 0;
+		long totalFailures = 0;
+		long ejections = 0;
+		boolean probation = false;
+		volatile long ejectedUntil = 0;
+
+		boolean isEjected(long now) {
+			return ejectedUntil > now;
+		}
+
+		/**
+		 * expected time to answer a new request
+		 * */
+		double cost() {
+			long latency;
+			synchronized (this) {
+				latency = samples == 0 ? INITIAL_LATENCY_NANOS : ewma;
+			}
+			return (double) latency * (inFlight.get() + 1);
+		}
+	}
+}
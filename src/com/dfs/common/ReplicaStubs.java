@@ -0,0 +1,48 @@
+package com.dfs.common;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ds.interfaces.ReplicaLocation;
+import com.ds.interfaces.ReplicaServerInterface;
+
+/**
+ * Stubs of the replicas keyed by the locations handed out by the main
+ * server, used by the clients talking to the replicas directly and by the
+ * replicas forwarding chained writes. A stub is looked up in the replica
+ * registry the first time the replica is used or after a call on it failed.
+ * */
+public class ReplicaStubs {
+	private ConcurrentHashMap<ReplicaLocation, ReplicaServerInterface> stubs = new ConcurrentHashMap<ReplicaLocation, ReplicaServerInterface>();
+
+	/**
+	 * @return the replica stub or null if the replica can not be reached
+	 * */
+	public ReplicaServerInterface get(ReplicaLocation location) {
+		ReplicaServerInterface stub = stubs.get(location);
+		if (stub != null)
+			return stub;
+
+		try {
+			Registry registry = LocateRegistry.getRegistry(location.getHostName(), location.getPort());
+			stub = (ReplicaServerInterface) registry.lookup(location.getUniqueName());
+			stubs.put(location, stub);
+			return stub;
+		} catch (RemoteException e) {
+			System.err.println("unable to reach replica " + location);
+		} catch (NotBoundException e) {
+			System.err.println("replica " + location + " is not bound");
+		}
+		return null;
+	}
+
+	/**
+	 * drops the stub of the replica after a failed call
+	 * */
+	public void evict(ReplicaLocation location) {
+		stubs.remove(location);
+	}
+}
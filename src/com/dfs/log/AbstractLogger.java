@@ -0,0 +1,360 @@
+package com.dfs.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import com.dfs.server.Transaction;
+
+/**
+ * Log appending encoded entries to segmented files through a single writer
+ * thread. Subclasses define how entries are encoded, where the segments are
+ * kept and how the log is read back.
+ * */
+public abstract class AbstractLogger {
+	/**
+	 * maximum number of entries written by one write call
+	 * */
+	private static final int MAX_BATCH_SIZE = 1024;
+
+	protected String logFilePath;
+	protected FileChannel log;
+
+	/**
+	 * number of the active log segment, older segments have been rolled by
+	 * checkpoints
+	 * */
+	protected long segment;
+
+	/**
+	 * entries appended by the callers and not written yet
+	 * */
+	private ConcurrentLinkedQueue<PendingEntry> queue = new ConcurrentLinkedQueue<PendingEntry>();
+	private LogWriter writer;
+
+	/**
+	 * whether the log methods without durable parameter wait for their entry
+	 * to be forced to disk
+	 * */
+	protected boolean waitForDurability = false;
+
+	/**
+	 * Initilaizes the logger and opening stream on log file or create it
+	 * */
+	public void init(String logFilePath){
+		this.logFilePath = logFilePath;
+		try {
+			log = openLog();
+		} catch (IOException e) {
+			System.err.println("unable to open log file");
+			e.printStackTrace();
+
+			// system can not start without log file
+			System.exit(1);
+		}
+
+		writer = new LogWriter();
+		writer.start();
+	}
+
+	/**
+	 * opens the file that entries are appended to and sets the active segment
+	 * */
+	protected abstract FileChannel openLog() throws IOException;
+
+	/**
+	 * called by the writer thread to close the active segment and start a new
+	 * one, all entries appended before the roll are in the closed segment.
+	 * */
+	protected abstract void rollLog() throws IOException;
+
+	/**
+	 * rolls the log and waits until it is done
+	 *
+	 * @return number of the new active segment
+	 * */
+	public long roll(){
+		PendingEntry marker = new PendingEntry(null, true);
+		queue.offer(marker);
+		LockSupport.unpark(writer);
+		marker.await();
+		return marker.segment;
+	}
+
+	/**
+	 * @return number of the active log segment
+	 * */
+	public long getSegment(){
+		return segment;
+	}
+
+	/**
+	 * @return the directory holding the log
+	 * */
+	public abstract File getLogDirectory();
+
+	/**
+	 * moves rolled segments older than the given segment to the archive
+	 * directory of the log, they are not needed for recovery any more
+	 * */
+	public abstract void archive(long beforeSegment);
+
+	/**
+	 * passes all the entries of the log starting at the given segment to the
+	 * listener, in the order they have been written
+	 * */
+	public abstract void replay(long fromSegment, LogReplayListener listener) throws IOException;
+
+	/**
+	 * called by the writer thread after each written batch, the log channel
+	 * can be replaced here
+	 * */
+	protected void batchWritten() throws IOException {
+	}
+
+	/**
+	 * sets whether the log methods without durable parameter wait until their
+	 * entry is forced to disk, by default they return once the entry is queued
+	 * */
+	public void setWaitForDurability(boolean waitForDurability) {
+		this.waitForDurability = waitForDurability;
+	}
+
+	/**
+	 * printing transaction information to the log
+	 *
+	 * @param	tx	transaction to be logged
+	 * */
+	public void logTransaction(Transaction tx, long time){
+		logTransaction(tx, time, waitForDurability);
+	}
+
+	/**
+	 * printing transaction information to the log
+	 *
+	 * @param	tx	transaction to be logged
+	 * @param	durable	wait until the entry is forced to disk
+	 * */
+	public abstract void logTransaction(Transaction tx, long time, boolean durable);
+
+	/**
+	 * printing log entry when file is read
+	 *
+	 * @param fileName	name of the file that is being read
+	 * */
+	public void logReadFile(String fileName, long time){
+		logReadFile(fileName, time, waitForDurability);
+	}
+
+	public abstract void logReadFile(String fileName, long time, boolean durable);
+
+	/**
+	 * printing a log entry for a transaction message
+	 *
+	 * @param	txnid	id transaction
+	 * @param	msgid	id of the message that has been writen
+	 * @param	msgSize	size of the message that has been writen
+	 * */
+	public void logWriteRequest(long txnid, long msgid, long msgSize, long time){
+		logWriteRequest(txnid, msgid, msgSize, time, waitForDurability);
+	}
+
+	public abstract void logWriteRequest(long txnid, long msgid, long msgSize, long time, boolean durable);
+
+	/**
+	 * printing one log entry for a batch of messages of a transaction
+	 *
+	 * @param	txnid	id transaction
+	 * @param	msgids	ids of the messages that have been writen
+	 * @param	msgSizes	sizes of the messages that have been writen
+	 * */
+	public void logWriteBatch(long txnid, long[] msgids, long[] msgSizes, long time){
+		logWriteBatch(txnid, msgids, msgSizes, time, waitForDurability);
+	}
+
+	public abstract void logWriteBatch(long txnid, long[] msgids, long[] msgSizes, long time, boolean durable);
+
+	/**
+	 * printing one log entry for a transaction that has been started, written
+	 * with a single message and committed at once
+	 *
+	 * @param	txnid	id transaction
+	 * @param	fileName	name of the file that has been appended to
+	 * @param	size	size of the appended data
+	 * @param	durable	wait until the entry is forced to disk
+	 * */
+	public abstract void logAppend(long txnid, String fileName, long size, long time, boolean durable);
+
+	/**
+	 * passes an append entry to the listener as the entries of the
+	 * transaction it stands for
+	 * */
+	protected static void replayAppend(LogReplayListener listener, long txnID, String fileName, long size, long time){
+		listener.onTransaction(txnID, Transaction.STARTED, fileName, time);
+		listener.onWriteRequest(txnID, 1, size, time);
+		listener.onTransaction(txnID, Transaction.COMMITED, fileName, time);
+	}
+
+	/**
+	 * queues an already encoded entry to be written by the writer thread
+	 *
+	 * @param	durable	wait until the entry is forced to disk
+	 * */
+	protected void appendEntry(byte[] entry, boolean durable){
+		PendingEntry pending = new PendingEntry(entry, durable);
+		queue.offer(pending);
+		LockSupport.unpark(writer);
+
+		if (durable)
+			pending.await();
+	}
+
+	/**
+	 * waits until all the entries appended so far are forced to disk
+	 * */
+	public void sync(){
+		appendEntry(new byte[0], true);
+	}
+
+	/**
+	 * writes all queued entries and stops the writer thread
+	 * */
+	public void closeWriterStream(){
+		writer.close();
+		try {
+			log.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void reInit(){
+		init(logFilePath);
+	}
+
+	/**
+	 * entry waiting to be written by the writer thread
+	 * */
+	class PendingEntry{
+		/**
+		 * encoded entry, null for a roll request
+		 * */
+		ByteBuffer data;
+		boolean durable;
+		Thread waiter;
+		volatile boolean done = false;
+
+		/**
+		 * new active segment of a roll request
+		 * */
+		long segment;
+
+		PendingEntry(byte[] data, boolean durable){
+			this.data = data == null ? null : ByteBuffer.wrap(data);
+			this.durable = durable;
+			if (durable)
+				this.waiter = Thread.currentThread();
+		}
+
+		void await(){
+			while (!done)
+				LockSupport.park(this);
+		}
+
+		void complete(){
+			done = true;
+			if (waiter != null)
+				LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * the only thread writing to the log file. It takes all queued entries,
+	 * writes them with one gathering write and forces the file once if any
+	 * of them has to be durable.
+	 * */
+	class LogWriter extends Thread{
+		volatile boolean closed = false;
+
+		LogWriter(){
+			super("log-writer");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			ArrayList<PendingEntry> batch = new ArrayList<PendingEntry>(MAX_BATCH_SIZE);
+			while (true) {
+				PendingEntry entry;
+				while (batch.size() < MAX_BATCH_SIZE && (entry = queue.poll()) != null) {
+					batch.add(entry);
+
+					// a roll request ends the batch
+					if (entry.data == null)
+						break;
+				}
+
+				if (batch.isEmpty()) {
+					if (closed)
+						return;
+					LockSupport.park(this);
+					continue;
+				}
+
+				try {
+					writeBatch(batch);
+					batchWritten();
+
+					PendingEntry last = batch.get(batch.size() - 1);
+					if (last.data == null) {
+						rollLog();
+						last.segment = segment;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+
+					// system can not live without logging
+					System.exit(1);
+				}
+
+				for (PendingEntry pending : batch)
+					pending.complete();
+				batch.clear();
+			}
+		}
+
+		private void writeBatch(ArrayList<PendingEntry> batch) throws IOException {
+			int count = batch.get(batch.size() - 1).data == null ? batch.size() - 1 : batch.size();
+			ByteBuffer[] buffers = new ByteBuffer[count];
+			boolean durable = false;
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = batch.get(i).data;
+				durable |= batch.get(i).durable;
+			}
+
+			int first = 0;
+			while (first < buffers.length) {
+				log.write(buffers, first, buffers.length - first);
+				while (first < buffers.length && !buffers[first].hasRemaining())
+					first++;
+			}
+
+			if (durable)
+				log.force(false);
+		}
+
+		void close(){
+			closed = true;
+			LockSupport.unpark(this);
+			try {
+				join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.dfs.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Walks the records of a binary log over memory mapped segments. The cursor
+ * is a flyweight: next moves it to the following record and the getters read
+ * the fields of the current record in place, so no object is allocated per
+ * record unless getFileName is called.
+ *
+ * Reading stops at the end of the last segment or at the first truncated or
+ * corrupted record, which is where a crash has left the log.
+ * */
+public class BinaryLogCursor {
+	private File directory;
+	private long[] segments;
+
+	/**
+	 * index in segments of the mapped segment
+	 * */
+	private int segmentIndex;
+	private MappedByteBuffer buffer;
+
+	/**
+	 * position of the current record body in the mapped segment
+	 * */
+	private int body;
+	private int length;
+	private boolean corrupted = false;
+
+	private CRC32 crc = new CRC32();
+
+	/**
+	 * @param directory
+	 *            directory of the log segments
+	 * @param fromSegment
+	 *            number of the first segment to read
+	 * @param fromPosition
+	 *            position of the first record in that segment
+	 * */
+	public BinaryLogCursor(File directory, long fromSegment, long fromPosition) throws IOException {
+		this.directory = directory;
+		this.segments = BinaryLogger.listSegments(directory);
+
+		segmentIndex = 0;
+		while (segmentIndex < segments.length && segments[segmentIndex] < fromSegment)
+			segmentIndex++;
+
+		if (segmentIndex < segments.length) {
+			map(segments[segmentIndex]);
+			if (segments[segmentIndex] == fromSegment)
+				buffer.position((int) Math.min(fromPosition, buffer.limit()));
+		}
+	}
+
+	private void map(long number) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(BinaryLogger.segmentFile(directory, number), "r");
+		try {
+			FileChannel channel = file.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * moves the cursor to the next valid record
+	 *
+	 * @return false if there are no more records
+	 * */
+	public boolean next() throws IOException {
+		while (buffer != null && !corrupted) {
+			if (buffer.remaining() >= BinaryLogger.RECORD_HEADER_SIZE) {
+				int start = buffer.position();
+				int len = buffer.getInt(start);
+				int checksum = buffer.getInt(start + 4);
+
+				if (len > 0 && len <= buffer.remaining() - BinaryLogger.RECORD_HEADER_SIZE) {
+					crc.reset();
+					buffer.position(start + BinaryLogger.RECORD_HEADER_SIZE);
+					buffer.limit(start + BinaryLogger.RECORD_HEADER_SIZE + len);
+					crc.update(buffer);
+					buffer.limit(buffer.capacity());
+
+					if ((int) crc.getValue() == checksum) {
+						body = start + BinaryLogger.RECORD_HEADER_SIZE;
+						length = len;
+						return true;
+					}
+				}
+
+				// a torn record is only expected at the end of the last segment
+				buffer.position(start);
+				if (segmentIndex == segments.length - 1) {
+					corrupted = true;
+					return false;
+				}
+			}
+
+			if (++segmentIndex >= segments.length) {
+				buffer = null;
+				return false;
+			}
+			map(segments[segmentIndex]);
+		}
+		return false;
+	}
+
+	public byte getType() {
+		return buffer.get(body);
+	}
+
+	public long getTime() {
+		return buffer.getLong(body + 1);
+	}
+
+	/**
+	 * @return id of the transaction of TRXN, WMSG, WBAT and APND records
+	 * */
+	public long getTransactionID() {
+		return buffer.getLong(body + 9);
+	}
+
+	/**
+	 * @return state of the transaction of TRXN records
+	 * */
+	public int getTransactionState() {
+		return buffer.getInt(body + 17);
+	}
+
+	/**
+	 * @return id of the message of WMSG and APND records
+	 * */
+	public long getMessageID() {
+		return buffer.getLong(body + 17);
+	}
+
+	/**
+	 * @return size of the message of WMSG and APND records
+	 * */
+	public long getMessageSize() {
+		return buffer.getLong(body + 25);
+	}
+
+	/**
+	 * @return number of messages of WBAT records
+	 * */
+	public int getBatchCount() {
+		return buffer.getInt(body + 17);
+	}
+
+	/**
+	 * @return id of the index-th message of WBAT records
+	 * */
+	public long getMessageID(int index) {
+		return buffer.getLong(body + 21 + 16 * index);
+	}
+
+	/**
+	 * @return size of the index-th message of WBAT records
+	 * */
+	public long getMessageSize(int index) {
+		return buffer.getLong(body + 29 + 16 * index);
+	}
+
+	/**
+	 * @return name of the file of TRXN, READ and APND records
+	 * */
+	public String getFileName() {
+		byte type = getType();
+		int offset = type == BinaryLogger.TRANSACTION_RECORD ? body + 21
+				: type == BinaryLogger.APPEND_RECORD ? body + 33 : body + 9;
+		int len = buffer.getInt(offset);
+		byte[] name = new byte[len];
+		for (int i = 0; i < len; i++)
+			name[i] = buffer.get(offset + 4 + i);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return number of the segment of the current record
+	 * */
+	public long getSegment() {
+		return segments[segmentIndex];
+	}
+
+	/**
+	 * @return position in its segment of the record following the current one
+	 * */
+	public long getNextPosition() {
+		return body + length;
+	}
+
+	/**
+	 * @return true if reading stopped at a torn or corrupted record
+	 * */
+	public boolean isCorrupted() {
+		return corrupted;
+	}
+}
@@ -0,0 +1,257 @@
+package com.dfs.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.dfs.server.Transaction;
+
+/**
+ * Logger writing length prefixed, checksummed binary records into a
+ * directory of log segments. The active segment is rolled once it grows
+ * beyond the segment size, and the log is read back with a BinaryLogCursor.
+ *
+ * Each record is laid out as:
+ *
+ * <pre>
+ * int  length of the body
+ * int  CRC32 of the body
+ * body:
+ *   byte type
+ *   long time
+ *   TRXN: long txnID, int state, int name length, name bytes
+ *   READ: int name length, name bytes
+ *   WMSG: long txnID, long msgID, long msgSize
+ *   WBAT: long txnID, int count, count * (long msgID, long msgSize)
+ *   APND: long txnID, long msgID, long msgSize, int name length, name bytes
+ * </pre>
+ * */
+public class BinaryLogger extends AbstractLogger {
+	public static final byte TRANSACTION_RECORD = 1;
+	public static final byte READ_RECORD = 2;
+	public static final byte WRITE_RECORD = 3;
+	public static final byte WRITE_BATCH_RECORD = 4;
+	public static final byte APPEND_RECORD = 5;
+
+	/**
+	 * size of the length and checksum fields preceding each record body
+	 * */
+	public static final int RECORD_HEADER_SIZE = 8;
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024; // 64 MBytes
+
+	static final String SEGMENT_PREFIX = "segment-";
+	static final String SEGMENT_SUFFIX = ".log";
+
+	private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	/**
+	 * @param segmentSize
+	 *            size in bytes after which the active segment is rolled
+	 * */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * opens the last segment of the log directory given to init, or creates
+	 * the first one. A record torn by a crash at the end of the last segment
+	 * is cut off, so that new records are not appended after it.
+	 * */
+	@Override
+	protected FileChannel openLog() throws IOException {
+		File directory = new File(logFilePath);
+		directory.mkdirs();
+
+		long[] segments = listSegments(directory);
+		segment = segments.length == 0 ? 0 : segments[segments.length - 1];
+
+		FileChannel channel = openSegment(segment);
+		long end = validEnd(directory, segment);
+		if (end < channel.size()) {
+			System.err.println("truncating torn record at " + end + " of " + segmentFile(directory, segment));
+			channel.truncate(end);
+			channel.force(false);
+		}
+		return channel;
+	}
+
+	/**
+	 * @return position following the last valid record of the segment
+	 * */
+	private static long validEnd(File directory, long number) throws IOException {
+		BinaryLogCursor cursor = new BinaryLogCursor(directory, number, 0);
+		long end = 0;
+		while (cursor.next())
+			end = cursor.getNextPosition();
+		return end;
+	}
+
+	private FileChannel openSegment(long number) throws IOException {
+		return new FileOutputStream(segmentFile(new File(logFilePath), number), true).getChannel();
+	}
+
+	@Override
+	protected void batchWritten() throws IOException {
+		if (log.position() >= segmentSize)
+			rollLog();
+	}
+
+	@Override
+	protected void rollLog() throws IOException {
+		log.force(false);
+		log.close();
+		log = openSegment(++segment);
+	}
+
+	@Override
+	public File getLogDirectory() {
+		return new File(logFilePath).getAbsoluteFile();
+	}
+
+	@Override
+	public void archive(long beforeSegment) {
+		File directory = new File(logFilePath);
+		File archive = new File(directory, "archive");
+		archive.mkdir();
+
+		for (long number : listSegments(directory)) {
+			if (number < beforeSegment) {
+				File rolled = segmentFile(directory, number);
+				rolled.renameTo(new File(archive, rolled.getName()));
+			}
+		}
+	}
+
+	@Override
+	public void replay(long fromSegment, LogReplayListener listener) throws IOException {
+		BinaryLogCursor cursor = new BinaryLogCursor(new File(logFilePath), fromSegment, 0);
+		while (cursor.next()) {
+			switch (cursor.getType()) {
+			case TRANSACTION_RECORD:
+				listener.onTransaction(cursor.getTransactionID(), cursor.getTransactionState(),
+						cursor.getFileName(), cursor.getTime());
+				break;
+			case WRITE_RECORD:
+				listener.onWriteRequest(cursor.getTransactionID(), cursor.getMessageID(),
+						cursor.getMessageSize(), cursor.getTime());
+				break;
+			case WRITE_BATCH_RECORD:
+				for (int i = 0; i < cursor.getBatchCount(); i++) {
+					listener.onWriteRequest(cursor.getTransactionID(), cursor.getMessageID(i),
+							cursor.getMessageSize(i), cursor.getTime());
+				}
+				break;
+			case APPEND_RECORD:
+				replayAppend(listener, cursor.getTransactionID(), cursor.getFileName(), cursor.getMessageSize(),
+						cursor.getTime());
+				break;
+			case READ_RECORD:
+				listener.onReadFile(cursor.getFileName(), cursor.getTime());
+				break;
+			}
+		}
+	}
+
+	@Override
+	public void logTransaction(Transaction tx, long time, boolean durable) {
+		byte[] name = tx.getFileName().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = record(TRANSACTION_RECORD, time, 8 + 4 + 4 + name.length);
+		record.putLong(tx.getId()).putInt(tx.getState()).putInt(name.length).put(name);
+		appendEntry(seal(record), durable);
+	}
+
+	@Override
+	public void logReadFile(String fileName, long time, boolean durable) {
+		byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = record(READ_RECORD, time, 4 + name.length);
+		record.putInt(name.length).put(name);
+		appendEntry(seal(record), durable);
+	}
+
+	@Override
+	public void logWriteRequest(long txnid, long msgid, long msgSize, long time, boolean durable) {
+		ByteBuffer record = record(WRITE_RECORD, time, 8 + 8 + 8);
+		record.putLong(txnid).putLong(msgid).putLong(msgSize);
+		appendEntry(seal(record), durable);
+	}
+
+	@Override
+	public void logWriteBatch(long txnid, long[] msgids, long[] msgSizes, long time, boolean durable) {
+		ByteBuffer record = record(WRITE_BATCH_RECORD, time, 8 + 4 + 16 * msgids.length);
+		record.putLong(txnid).putInt(msgids.length);
+		for (int i = 0; i < msgids.length; i++)
+			record.putLong(msgids[i]).putLong(msgSizes[i]);
+		appendEntry(seal(record), durable);
+	}
+
+	@Override
+	public void logAppend(long txnid, String fileName, long size, long time, boolean durable) {
+		byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = record(APPEND_RECORD, time, 8 + 8 + 8 + 4 + name.length);
+		record.putLong(txnid).putLong(1).putLong(size).putInt(name.length).put(name);
+		appendEntry(seal(record), durable);
+	}
+
+	/**
+	 * allocates a record and writes its type and time
+	 *
+	 * @param payload
+	 *            size of the record fields following the time
+	 * */
+	private ByteBuffer record(byte type, long time, int payload) {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + 1 + 8 + payload);
+		record.position(RECORD_HEADER_SIZE);
+		record.put(type).putLong(time);
+		return record;
+	}
+
+	/**
+	 * fills the length and checksum of the record
+	 * */
+	private byte[] seal(ByteBuffer record) {
+		int length = record.position() - RECORD_HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_SIZE, length);
+		record.putInt(0, length);
+		record.putInt(4, (int) crc.getValue());
+		return record.array();
+	}
+
+	/**
+	 * @return a cursor over all the records of the log
+	 * */
+	public BinaryLogCursor openCursor() throws IOException {
+		return new BinaryLogCursor(new File(logFilePath), 0, 0);
+	}
+
+	static File segmentFile(File directory, long number) {
+		return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * @return sorted numbers of the segments in the log directory
+	 * */
+	static long[] listSegments(File directory) {
+		String[] names = directory.list();
+		if (names == null)
+			return new long[0];
+
+		long[] segments = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				segments[count++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+						name.length() - SEGMENT_SUFFIX.length()));
+			}
+		}
+		segments = Arrays.copyOf(segments, count);
+		Arrays.sort(segments);
+		return segments;
+	}
+}
@@ -0,0 +1,12 @@
+package com.dfs.log;
+
+/**
+ * Receives the entries of a log while it is being replayed.
+ * */
+public interface LogReplayListener {
+	public void onTransaction(long txnID, int state, String fileName, long time);
+
+	public void onWriteRequest(long txnID, long msgID, long msgSize, long time);
+
+	public void onReadFile(String fileName, long time);
+}
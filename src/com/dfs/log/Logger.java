@@ -1,107 +1,222 @@
 package com.dfs.log;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.StringTokenizer;
+import java.util.Vector;
 
 import com.dfs.server.Transaction;
 
-public class Logger {
+/**
+ * Logger writing one line of text per entry to a log file, rolled segments
+ * are kept next to it with their number appended to its name.
+ * */
+public class Logger extends AbstractLogger {
 	public static final String TRANSACTION_LOG_ENTRY = "TRXN";
 	public static final String READ_LOG_ENTRY = "READ";
 	public static final String WRITE_LOG_ENTRY = "WMSG";
+	public static final String WRITE_BATCH_LOG_ENTRY = "WBAT";
+	public static final String APPEND_LOG_ENTRY = "APND";
 	
-	protected String logFilePath;
-	protected BufferedWriter log;
+	/**
+	 * opens the file that entries are appended to. An entry torn by a crash
+	 * at the end of the file is cut off, so that new entries are not glued to
+	 * it.
+	 * */
+	@Override
+	protected FileChannel openLog() throws IOException {
+		File logFile = new File(logFilePath);
+		logFile.createNewFile();
+		
+		// rolled segments are named after the log file followed by their number
+		long[] rolled = listRolledSegments();
+		segment = rolled.length == 0 ? 0 : rolled[rolled.length - 1] + 1;
+		
+		FileChannel channel = new FileOutputStream(logFile, true).getChannel();
+		long end = lastLineEnd(logFile);
+		if (end < channel.size()) {
+			System.err.println("truncating torn entry at " + end + " of " + logFilePath);
+			channel.truncate(end);
+			channel.force(false);
+		}
+		return channel;
+	}
 	
 	/**
-	 * Initilaizes the logger and opening stream on log file or create it
+	 * @return position following the last new line of the file
 	 * */
-	public void init(String logFilePath){
-		this.logFilePath = logFilePath;
+	private static long lastLineEnd(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
 		try {
-			File logFile = new File(logFilePath);
-			logFile.createNewFile();
-			log = new BufferedWriter(new FileWriter(logFile, true));
-		} catch (IOException e) {
-			System.err.println("unable to open log file");
-			e.printStackTrace();
-			
-			// system can not start without log file
-			System.exit(1);
+			byte[] buffer = new byte[4096];
+			long end = in.length();
+			while (end > 0) {
+				int count = (int) Math.min(buffer.length, end);
+				in.seek(end - count);
+				in.readFully(buffer, 0, count);
+				for (int i = count - 1; i >= 0; i--) {
+					if (buffer[i] == '\n')
+						return end - count + i + 1;
+				}
+				end -= count;
+			}
+			return 0;
+		} finally {
+			in.close();
 		}
 	}
 	
 	/**
-	 * printing transaction information to the log
-	 * 
-	 * @param	tx	transaction to be logged
+	 * called by the writer thread to close the active segment and start a new
+	 * one, all entries appended before the roll are in the closed segment.
+	 * */
+	@Override
+	protected void rollLog() throws IOException {
+		log.force(false);
+		log.close();
+		
+		File logFile = new File(logFilePath);
+		if (!logFile.renameTo(new File(logFilePath + "." + segment)))
+			throw new IOException("unable to roll " + logFilePath);
+		
+		segment++;
+		logFile.createNewFile();
+		log = new FileOutputStream(logFile, true).getChannel();
+	}
+	
+	/**
+	 * @return the directory holding the log
+	 * */
+	@Override
+	public File getLogDirectory(){
+		return new File(logFilePath).getAbsoluteFile().getParentFile();
+	}
+	
+	/**
+	 * moves rolled segments older than the given segment to the archive
+	 * directory of the log, they are not needed for recovery any more
 	 * */
-	public String logTransaction(Transaction tx, long time){
-		String msg = String.format("%d:%d:%s", tx.getId(), tx.getState(), tx.getFileName());
-		return writeLogEntry(TRANSACTION_LOG_ENTRY, msg, time);
+	@Override
+	public void archive(long beforeSegment){
+		File archive = new File(getLogDirectory(), "archive");
+		archive.mkdir();
+		
+		for (long number : listRolledSegments()) {
+			if (number < beforeSegment) {
+				File rolled = new File(logFilePath + "." + number);
+				rolled.renameTo(new File(archive, rolled.getName()));
+			}
+		}
+	}
+	
+	private long[] listRolledSegments(){
+		File logFile = new File(logFilePath).getAbsoluteFile();
+		String prefix = logFile.getName() + ".";
+		String[] names = logFile.getParentFile().list();
+		if (names == null)
+			return new long[0];
+		
+		long[] segments = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.startsWith(prefix)) {
+				try {
+					segments[count] = Long.parseLong(name.substring(prefix.length()));
+					count++;
+				} catch (NumberFormatException e) {
+					// not a rolled segment
+				}
+			}
+		}
+		segments = Arrays.copyOf(segments, count);
+		Arrays.sort(segments);
+		return segments;
 	}
 	
 	/**
-	 * printing log entry when file is read
+	 * printing transaction information to the log
 	 * 
-	 * @param fileName	name of the file that is being read 
+	 * @param	tx	transaction to be logged
+	 * @param	durable	wait until the entry is forced to disk
 	 * */
-	public String logReadFile(String fileName, long time){
-		return writeLogEntry(READ_LOG_ENTRY, fileName, time);
+	@Override
+	public void logTransaction(Transaction tx, long time, boolean durable){
+		StringBuilder entry = header(TRANSACTION_LOG_ENTRY, time);
+		entry.append(tx.getId()).append(':').append(tx.getState()).append(':').append(tx.getFileName());
+		append(entry, durable);
 	}
 	
+	@Override
+	public void logReadFile(String fileName, long time, boolean durable){
+		append(header(READ_LOG_ENTRY, time).append(fileName), durable);
+	}
 	
+	@Override
+	public void logWriteRequest(long txnid, long msgid, long msgSize, long time, boolean durable){
+		StringBuilder entry = header(WRITE_LOG_ENTRY, time);
+		entry.append(txnid).append(':').append(msgid).append(':').append(msgSize);
+		append(entry, durable);
+	}
+
+	@Override
+	public void logWriteBatch(long txnid, long[] msgids, long[] msgSizes, long time, boolean durable){
+		StringBuilder entry = header(WRITE_BATCH_LOG_ENTRY, time);
+		entry.append(txnid);
+		for (int i = 0; i < msgids.length; i++)
+			entry.append(i == 0 ? ':' : ';').append(msgids[i]).append(',').append(msgSizes[i]);
+		append(entry, durable);
+	}
+
 	/**
-	 * printing a log entry for a transaction message
+	 * printing one log entry for a transaction that has been started, written
+	 * with a single message and committed at once
 	 * 
 	 * @param	txnid	id transaction
-	 * @param	msgid	id of the message that has been writen
-	 * @param	msgSize	size of the message that has been writen
+	 * @param	fileName	name of the file that has been appended to
+	 * @param	size	size of the appended data
+	 * @param	durable	wait until the entry is forced to disk
 	 * */
-	public String logWriteRequest(long txnid, long msgid, long msgSize, long time){
-		String msg = String.format("%d:%d:%d", txnid, msgid, msgSize);
-		return writeLogEntry(WRITE_LOG_ENTRY, msg, time);
+	@Override
+	public void logAppend(long txnid, String fileName, long size, long time, boolean durable){
+		StringBuilder entry = header(APPEND_LOG_ENTRY, time);
+		entry.append(txnid).append(':').append(size).append(':').append(fileName);
+		append(entry, durable);
 	}
 
 	protected String writeLogEntry(String entryType, String msg, long time){
-		try {
-			StringBuilder stb = new StringBuilder();
-			stb.append(String.format("%s:%d", entryType, time));
-			stb.append('\t');
-			stb.append(msg);
-			stb.append('\n');
-			
-			log.write(stb.toString());
-			log.flush();
-			
-			return stb.toString();
-		} catch (IOException e) {
-			e.printStackTrace();
-
-			// system can not live without logging
-			System.exit(1);
-		}
-		return null;
+		return append(header(entryType, time).append(msg), waitForDurability);
 	}
 	
-	public void closeWriterStream(){
-		try {
-			log.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	private StringBuilder header(String entryType, long time){
+		StringBuilder stb = new StringBuilder(64);
+		stb.append(entryType).append(':').append(time).append('\t');
+		return stb;
 	}
 	
-	public void reInit(){
-		init(logFilePath);
+	/**
+	 * queues the encoded entry to be written by the writer thread
+	 * 
+	 * @param	durable	wait until the entry is forced to disk
+	 * */
+	private String append(StringBuilder entry, boolean durable){
+		entry.append('\n');
+		String line = entry.toString();
+		
+		appendEntry(line.getBytes(StandardCharsets.UTF_8), durable);
+		
+		return line;
 	}
 	
 	public LogIterator readLog() throws FileNotFoundException{
@@ -110,6 +225,57 @@ public class Logger {
 		return new LogIterator(in);
 	}
 	
+	/**
+	 * reads the log starting at the given segment, i.e. the rolled segments
+	 * from that number followed by the active one
+	 * */
+	public LogIterator readLog(long fromSegment) throws FileNotFoundException{
+		Vector<InputStream> streams = new Vector<InputStream>();
+		for (long number : listRolledSegments()) {
+			if (number >= fromSegment)
+				streams.add(new FileInputStream(new File(logFilePath + "." + number)));
+		}
+		streams.add(new FileInputStream(new File(logFilePath)));
+		
+		InputStreamReader converter = new InputStreamReader(new SequenceInputStream(streams.elements()), StandardCharsets.UTF_8);
+		return new LogIterator(new BufferedReader(converter));
+	}
+	
+	/**
+	 * passes all the entries of the log starting at the given segment to the
+	 * listener, in the order they have been written
+	 * */
+	@Override
+	public void replay(long fromSegment, LogReplayListener listener) throws IOException{
+		LogIterator iterator = readLog(fromSegment);
+		try {
+			while (iterator.hasNext()) {
+				LogEntry entry;
+				try {
+					entry = iterator.next();
+				} catch (RuntimeException e) {
+					// a crash can leave a partial entry, nothing follows it
+					System.err.println("stopping replay at unparsable log entry: " + iterator.line);
+					break;
+				}
+				
+				if (entry.type.equals(TRANSACTION_LOG_ENTRY))
+					listener.onTransaction(entry.transactionID, (int) entry.transactionState, entry.fileName, entry.timeStamp);
+				else if (entry.type.equals(WRITE_LOG_ENTRY))
+					listener.onWriteRequest(entry.transactionID, entry.messageID, entry.messageSize, entry.timeStamp);
+				else if (entry.type.equals(WRITE_BATCH_LOG_ENTRY))
+					for (int i = 0; i < entry.messageIDs.length; i++)
+						listener.onWriteRequest(entry.transactionID, entry.messageIDs[i], entry.messageSizes[i], entry.timeStamp);
+				else if (entry.type.equals(APPEND_LOG_ENTRY))
+					replayAppend(listener, entry.transactionID, entry.fileName, entry.messageSize, entry.timeStamp);
+				else if (entry.type.equals(READ_LOG_ENTRY))
+					listener.onReadFile(entry.fileName, entry.timeStamp);
+			}
+		} finally {
+			iterator.in.close();
+		}
+	}
+	
 	class LogEntry{
 		String type;
 		long timeStamp;
@@ -118,6 +284,8 @@ public class Logger {
 		long transactionState;
 		long messageID;
 		long messageSize;
+		long[] messageIDs;
+		long[] messageSizes;
 		
 		public LogEntry(String line){
 			String type_and_timeStamp = line.substring(0, line.indexOf('\t'));
@@ -144,6 +312,27 @@ public class Logger {
 				this.transactionID = Long.parseLong(st.nextToken());
 				this.messageID = Long.parseLong(st.nextToken());
 				this.messageSize = Long.parseLong(st.nextToken());
+			
+			}else if(type.equals(APPEND_LOG_ENTRY)){
+				
+				st = new StringTokenizer(entryDate, ":");
+				this.transactionID = Long.parseLong(st.nextToken());
+				this.messageSize = Long.parseLong(st.nextToken());
+				this.fileName = entryDate.substring(entryDate.indexOf(':', entryDate.indexOf(':') + 1) + 1);
+			
+			}else if(type.equals(WRITE_BATCH_LOG_ENTRY)){
+				
+				// a batch without messages has no ':' after the transaction id
+				int colon = entryDate.indexOf(':');
+				this.transactionID = Long.parseLong(colon == -1 ? entryDate : entryDate.substring(0, colon));
+				String[] messages = colon == -1 ? new String[0] : entryDate.substring(colon + 1).split(";");
+				this.messageIDs = new long[messages.length];
+				this.messageSizes = new long[messages.length];
+				for (int i = 0; i < messages.length; i++) {
+					int comma = messages[i].indexOf(',');
+					this.messageIDs[i] = Long.parseLong(messages[i].substring(0, comma));
+					this.messageSizes[i] = Long.parseLong(messages[i].substring(comma + 1));
+				}
 			}
 		}
 	}
@@ -160,7 +349,7 @@ public class Logger {
 		@Override
 		public boolean hasNext() {
 			if(nextElementHasbeenRead)
-				return line == null;
+				return line != null;
 
 			try {
 				line = in.readLine();
@@ -169,7 +358,7 @@ public class Logger {
 			}
 			
 			nextElementHasbeenRead = true;
-			return line == null;
+			return line != null;
 		}
 
 		@Override
@@ -196,4 +385,4 @@ public class Logger {
 		}
 		
 	}
-}
+}
\ No newline at end of file
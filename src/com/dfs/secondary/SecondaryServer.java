@@ -13,14 +13,20 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.List;
 
 import com.dfs.heartbeats.HearbeatsManager;
 import com.dfs.heartbeats.HeartbeatsListener;
 import com.dfs.heartbeats.HeartbeatsResponder;
+import com.dfs.log.AbstractLogger;
+import com.dfs.log.BinaryLogger;
 import com.dfs.log.Logger;
 import com.dfs.server.MainServer;
 import com.dfs.server.Transaction;
+import com.dfs.server.TransactionTable;
 import com.ds.interfaces.ClientInterface;
+import com.ds.interfaces.ReplicationEvent;
+import com.ds.interfaces.ResyncRequiredException;
 import com.ds.interfaces.SecondaryServerInterface;
 import com.ds.interfaces.ServerInterface;
 
@@ -29,14 +35,40 @@ public class SecondaryServer implements HeartbeatsListener, SecondaryServerInter
 	String directoryPath;
 	String mainServerDirectoryPath;
 	HearbeatsManager hearbeatsManager;
-	Logger logger;
+	AbstractLogger logger;
 	
 	Hashtable<String, ClientInterface> clients = new Hashtable<String, ClientInterface>();
-	Hashtable<Long, Transaction> transactions = new Hashtable<Long, Transaction>();
+	TransactionTable transactions = new TransactionTable();
 	
 	int mainServerPort;
+
+	/**
+	 * epoch of the main server events are received from
+	 * */
+	long epoch = 0;
+	
+	/**
+	 * sequence number of the last event received from the main server
+	 * */
+	long lastAppliedSeq = 0;
+	
+	/**
+	 * set when events have been missed, the secondary does not take over
+	 * until it receives a snapshot of the main server state
+	 * */
+	volatile boolean stale = false;
 	
 	public SecondaryServer(String directoryPath, String mainServerDirectoryPath,int mainServerPort) throws RemoteException {
+		this(directoryPath, mainServerDirectoryPath, mainServerPort, false);
+	}
+	
+	/**
+	 * @param binaryLog
+	 *            log into checksummed binary segments in the binlog directory
+	 *            instead of the text log, the server taking over keeps using
+	 *            this log
+	 * */
+	public SecondaryServer(String directoryPath, String mainServerDirectoryPath,int mainServerPort, boolean binaryLog) throws RemoteException {
 		this.directoryPath = directoryPath;
 		this.mainServerPort = mainServerPort;
 		this.mainServerDirectoryPath = mainServerDirectoryPath;
@@ -45,8 +77,13 @@ public class SecondaryServer implements HeartbeatsListener, SecondaryServerInter
 		new File(directoryPath + "log/").mkdir();
 		
 		// initialize new logger
-		this.logger = new Logger();
-		this.logger.init(directoryPath + "log/log.txt");
+		if (binaryLog) {
+			this.logger = new BinaryLogger();
+			this.logger.init(directoryPath + "log/binlog/");
+		} else {
+			this.logger = new Logger();
+			this.logger.init(directoryPath + "log/log.txt");
+		}
 		
 	}
 	
@@ -86,6 +123,11 @@ public class SecondaryServer implements HeartbeatsListener, SecondaryServerInter
 	public void onReponderFailure(HeartbeatsResponder failedResponder, int id) {
 		try {
 			System.err.println("Main server failure!");
+			
+			if (stale) {
+				System.err.println("secondary server missed events of the main server, refusing to take over");
+				return;
+			}
 			System.out.println("Failure recovery routine started ...");
 			
 			MainServer server = new MainServer(logger, clients, transactions, mainServerDirectoryPath);
@@ -142,14 +184,14 @@ public class SecondaryServer implements HeartbeatsListener, SecondaryServerInter
 			throws RemoteException {
 		Transaction tx = transactions.get(txnID);
 		tx.setState(Transaction.COMMITED);
-		logger.logTransaction(tx, time);
+		logger.logTransaction(tx, time, true);
 	}
 
 	@Override
 	public void abort(long txnID, String fileName, long time) throws RemoteException {
 		Transaction tx = transactions.get(txnID);
 		tx.setState(Transaction.ABORTED);
-		logger.logTransaction(tx, time);
+		logger.logTransaction(tx, time, true);
 	}
 
 	@Override
@@ -164,6 +206,97 @@ public class SecondaryServer implements HeartbeatsListener, SecondaryServerInter
 		clients.remove(auth_token);
 	}
 	
+	@Override
+	public synchronized long replicate(List<ReplicationEvent> events) throws RemoteException, ResyncRequiredException {
+		for (ReplicationEvent event : events) {
+			// a new main server numbers its events from the start again
+			if (event.getEpoch() != epoch) {
+				epoch = event.getEpoch();
+				lastAppliedSeq = 0;
+			}
+			
+			if (event.getSeq() <= lastAppliedSeq)
+				continue;
+			
+			if (event.getType() != ReplicationEvent.SNAPSHOT && event.getSeq() != lastAppliedSeq + 1) {
+				stale = true;
+				logger.sync();
+				throw new ResyncRequiredException("expected event " + (lastAppliedSeq + 1) + " but received "
+						+ event.getSeq(), lastAppliedSeq);
+			}
+
+			switch (event.getType()) {
+			case ReplicationEvent.READ:
+				logger.logReadFile(event.getFileName(), event.getTime(), false);
+				break;
+			case ReplicationEvent.NEW_TXN:
+				Transaction tx = new Transaction(event.getFileName(), Transaction.STARTED, event.getTxnID(), event.getTime());
+				transactions.put(tx.getId(), tx);
+				logger.logTransaction(tx, event.getTime(), false);
+				break;
+			case ReplicationEvent.WRITE:
+				logger.logWriteRequest(event.getTxnID(), event.getMsgSeqNum(), event.getDataLength(), event.getTime(), false);
+				break;
+			case ReplicationEvent.WRITE_BATCH:
+				logger.logWriteBatch(event.getTxnID(), event.getMsgSeqNums(), event.getDataLengths(), event.getTime(), false);
+				break;
+			case ReplicationEvent.APPEND:
+				logger.logAppend(event.getTxnID(), event.getFileName(), event.getDataLength(), event.getTime(), false);
+				break;
+			case ReplicationEvent.COMMIT:
+				applyState(event, Transaction.COMMITED);
+				break;
+			case ReplicationEvent.ABORT:
+				applyState(event, Transaction.ABORTED);
+				break;
+			case ReplicationEvent.REGISTER_CLIENT:
+				clients.put(event.getAuthToken(), event.getClient());
+				break;
+			case ReplicationEvent.UNREGISTER_CLIENT:
+				clients.remove(event.getAuthToken());
+				break;
+			case ReplicationEvent.SNAPSHOT:
+				applySnapshot(event);
+				stale = false;
+				break;
+			}
+			lastAppliedSeq = event.getSeq();
+		}
+
+		// one sync for the whole batch before acknowledging it
+		logger.sync();
+		return lastAppliedSeq;
+	}
+
+	/**
+	 * replaces the transactions and clients tables by the ones of the
+	 * snapshot, the transactions are logged so the log reflects them too
+	 * */
+	private void applySnapshot(ReplicationEvent event) {
+		for (Transaction tx : transactions.values())
+			transactions.remove(tx.getId());
+		
+		long[] txnIDs = event.getTxnIDs();
+		for (int i = 0; i < txnIDs.length; i++) {
+			Transaction tx = new Transaction(event.getFileNames()[i], event.getStates()[i], txnIDs[i], event.getTimes()[i]);
+			transactions.put(tx.getId(), tx);
+			logger.logTransaction(tx, event.getTimes()[i], false);
+		}
+		
+		clients.clear();
+		clients.putAll(event.getClients());
+	}
+
+	private void applyState(ReplicationEvent event, int state) {
+		Transaction tx = transactions.get(event.getTxnID());
+		if (tx == null) {
+			tx = new Transaction(event.getFileName(), state, event.getTxnID(), event.getTime());
+			transactions.put(tx.getId(), tx);
+		}
+		tx.setState(state);
+		logger.logTransaction(tx, event.getTime(), false);
+	}
+
 	private String getLanIPAddress() throws SocketException{
 		Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
         while(e.hasMoreElements()){
@@ -0,0 +1,180 @@
+package com.dfs.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ds.interfaces.ServerBusyException;
+
+/**
+ * Bounds the number of calls running in the server. Calls are admitted in
+ * three lanes: reads may only use a part of the capacity, writes a larger
+ * part and commits all of it, so when the server is loaded reads are shed
+ * first and running transactions can still finish. Each client may also run
+ * only a bounded number of calls at the same time, so a single client can not
+ * take the whole capacity.
+ *
+ * Calls that can not be admitted are rejected at once with a
+ * ServerBusyException telling the client when to retry, instead of waiting
+ * in the server.
+ * */
+public class AdmissionController {
+	public static final int READ = 0;
+	public static final int WRITE = 1;
+	public static final int COMMIT = 2;
+
+	public static final int DEFAULT_MAX_CONCURRENT = 256;
+	public static final int DEFAULT_CLIENT_QUOTA = 32;
+
+	private static final String[] LANE_NAMES = { "read", "write", "commit" };
+
+	/**
+	 * share of the capacity each lane may use
+	 * */
+	private static final double[] LANE_SHARES = { 0.6, 0.8, 1.0 };
+
+	private static final long MIN_RETRY_AFTER = 10;
+	private static final long MAX_RETRY_AFTER = 5000;
+
+	private int maxConcurrent;
+	private int clientQuota;
+	private int[] laneLimits = new int[3];
+
+	private AtomicInteger running = new AtomicInteger();
+	private ConcurrentHashMap<String, AtomicInteger> clientCalls = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/**
+	 * moving average of the calls duration per lane in microseconds
+	 * */
+	private AtomicLong[] laneMicros = { new AtomicLong(1000), new AtomicLong(1000), new AtomicLong(1000) };
+	private AtomicLong[] admitted = { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+	private AtomicLong[] rejected = { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+	private AtomicLong quotaRejections = new AtomicLong();
+
+	public AdmissionController() {
+		this(DEFAULT_MAX_CONCURRENT, DEFAULT_CLIENT_QUOTA);
+	}
+
+	/**
+	 * @param maxConcurrent
+	 *            number of calls running at the same time
+	 * @param clientQuota
+	 *            number of calls of one client running at the same time
+	 * */
+	public AdmissionController(int maxConcurrent, int clientQuota) {
+		this.maxConcurrent = maxConcurrent;
+		this.clientQuota = clientQuota;
+		for (int lane = 0; lane < laneLimits.length; lane++)
+			laneLimits[lane] = Math.max(1, (int) (maxConcurrent * LANE_SHARES[lane]));
+	}
+
+	/**
+	 * admits a call of the client in the lane
+	 *
+	 * @param token
+	 *            authentication token of the client
+	 * @return ticket to be released when the call is done
+	 * @throws ServerBusyException
+	 *             if the lane or the client quota is full
+	 * */
+	public Ticket admit(String token, int lane) throws ServerBusyException {
+		while (true) {
+			int current = running.get();
+			if (current >= laneLimits[lane]) {
+				rejected[lane].incrementAndGet();
+				throw new ServerBusyException("server is busy, " + LANE_NAMES[lane] + " calls are rejected",
+						retryAfter(lane, current - laneLimits[lane] + 1));
+			}
+			if (running.compareAndSet(current, current + 1))
+				break;
+		}
+
+		AtomicInteger calls = clientCalls.get(token);
+		if (calls == null) {
+			AtomicInteger created = new AtomicInteger();
+			calls = clientCalls.putIfAbsent(token, created);
+			if (calls == null)
+				calls = created;
+		}
+		if (calls.incrementAndGet() > clientQuota) {
+			calls.decrementAndGet();
+			running.decrementAndGet();
+			quotaRejections.incrementAndGet();
+			throw new ServerBusyException("too many calls running for this client", retryAfter(lane, 1));
+		}
+
+		admitted[lane].incrementAndGet();
+		return new Ticket(calls, lane);
+	}
+
+	/**
+	 * @return time for the excess calls to drain, from the average duration
+	 *         of the calls of the lane
+	 * */
+	private long retryAfter(int lane, int excess) {
+		long millis = laneMicros[lane].get() * excess / 1000;
+		return Math.max(MIN_RETRY_AFTER, Math.min(MAX_RETRY_AFTER, millis));
+	}
+
+	/**
+	 * drops the counters of a client that unregistered
+	 * */
+	public void forget(String token) {
+		clientCalls.remove(token);
+	}
+
+	public int getRunning() {
+		return running.get();
+	}
+
+	public long getAdmitted(int lane) {
+		return admitted[lane].get();
+	}
+
+	public long getRejected(int lane) {
+		return rejected[lane].get();
+	}
+
+	/**
+	 * @return number of calls rejected because their client had too many
+	 *         calls running
+	 * */
+	public long getQuotaRejections() {
+		return quotaRejections.get();
+	}
+
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format("running=%d/%d", running.get(), maxConcurrent));
+		for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+			builder.append(String.format(" %s=%d/%d", LANE_NAMES[lane], admitted[lane].get(), rejected[lane].get()));
+		}
+		builder.append(" quota=").append(quotaRejections.get());
+		return builder.toString();
+	}
+
+	/**
+	 * admitted call, released once when the call is done
+	 * */
+	public class Ticket {
+		private AtomicInteger clientCalls;
+		private int lane;
+		private long start = System.nanoTime();
+
+		Ticket(AtomicInteger clientCalls, int lane) {
+			this.clientCalls = clientCalls;
+			this.lane = lane;
+		}
+
+		public void release() {
+			clientCalls.decrementAndGet();
+			running.decrementAndGet();
+
+			// ewma with weight 1/8
+			long micros = (System.nanoTime() - start) / 1000;
+			AtomicLong average = laneMicros[lane];
+			long old = average.get();
+			average.compareAndSet(old, old + (micros - old) / 8);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.dfs.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Hashtable;
+import java.util.List;
+
+import com.dfs.log.AbstractLogger;
+import com.ds.interfaces.ClientInterface;
+
+/**
+ * Periodically writes a snapshot of the main server transactions and clients
+ * tables together with the log segment where replay has to start from. Log
+ * segments older than the last checkpoint are archived, so restarting the
+ * server only replays the log written since then.
+ *
+ * Client registrations are not logged, the server writes a checkpoint each
+ * time its clients table changes instead.
+ * */
+public class Checkpointer extends Thread {
+	public static final long DEFAULT_INTERVAL = 60000; // 1 minute
+	public static final String CHECKPOINT_FILE_NAME = "checkpoint";
+
+	private AbstractLogger logger;
+	private TransactionTable transactions;
+	private Hashtable<String, ClientInterface> clients;
+	private File file;
+	private long interval;
+
+	public Checkpointer(AbstractLogger logger, TransactionTable transactions,
+			Hashtable<String, ClientInterface> clients, long interval) {
+		super("checkpointer");
+		setDaemon(true);
+
+		this.logger = logger;
+		this.transactions = transactions;
+		this.clients = clients;
+		this.interval = interval;
+		this.file = checkpointFile(logger);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				checkpoint();
+			} catch (IOException e) {
+				System.err.println("unable to write checkpoint");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * writes a new checkpoint and archives the log segments it covers.
+	 *
+	 * The log is rolled before the tables are copied: the server updates its
+	 * tables before logging, so every entry in the rolled segments is already
+	 * reflected in the snapshot. Entries written after the roll may be
+	 * reflected as well, replaying them again is harmless.
+	 * */
+	public synchronized void checkpoint() throws IOException {
+		long segment = logger.roll();
+
+		List<Transaction> txs = transactions.values();
+		Hashtable<String, ClientInterface> clientsCopy = new Hashtable<String, ClientInterface>(clients);
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fout = new FileOutputStream(tmp);
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(fout));
+			out.writeLong(segment);
+			out.writeInt(txs.size());
+			for (Transaction tx : txs) {
+				out.writeLong(tx.getId());
+				out.writeInt(tx.getState());
+				out.writeUTF(tx.getFileName());
+				out.writeLong(tx.getLastEdited());
+			}
+			out.writeObject(clientsCopy);
+			out.flush();
+			fout.getFD().sync();
+		} finally {
+			fout.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		logger.archive(segment);
+	}
+
+	/**
+	 * loads the last checkpoint written next to the log into the tables
+	 *
+	 * @return the log segment replay has to start from, 0 if there is no
+	 *         checkpoint
+	 * */
+	@SuppressWarnings("unchecked")
+	public static long load(AbstractLogger logger, TransactionTable transactions,
+			Hashtable<String, ClientInterface> clients) throws IOException {
+		File file = checkpointFile(logger);
+		if (!file.exists())
+			return 0;
+
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			long segment = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long id = in.readLong();
+				int state = in.readInt();
+				String fileName = in.readUTF();
+				long lastEdited = in.readLong();
+				transactions.put(id, new Transaction(fileName, state, id, lastEdited));
+			}
+			clients.putAll((Hashtable<String, ClientInterface>) in.readObject());
+			return segment;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("invalid checkpoint " + file, e);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static File checkpointFile(AbstractLogger logger) {
+		return new File(logger.getLogDirectory(), CHECKPOINT_FILE_NAME);
+	}
+}
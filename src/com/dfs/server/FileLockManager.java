@@ -0,0 +1,198 @@
+package com.dfs.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shared/exclusive locks on file names. Each locked file has its own lock
+ * with a FIFO queue of waiting threads that are handed the lock directly when
+ * it is released, so locks on different files never block each other. The
+ * per file locks live in striped tables and are dropped once nobody holds or
+ * waits for them.
+ * */
+public class FileLockManager {
+	public static final long DEFAULT_TIMEOUT = 30000; // 30 seconds
+
+	private static final int STRIPES = 64;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private HashMap<String, FileLock>[] stripes = new HashMap[STRIPES];
+
+	public FileLockManager() {
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new HashMap<String, FileLock>();
+	}
+
+	/**
+	 * locks the file for reading, many readers may hold the lock together
+	 *
+	 * @return false if the lock has not been granted within timeout
+	 *         milliseconds
+	 * */
+	public boolean lockShared(String fileName, long timeout) throws InterruptedException {
+		return lock(fileName, false, timeout);
+	}
+
+	/**
+	 * locks the file for writing, no other reader or writer holds the lock
+	 * at the same time
+	 *
+	 * @return false if the lock has not been granted within timeout
+	 *         milliseconds
+	 * */
+	public boolean lockExclusive(String fileName, long timeout) throws InterruptedException {
+		return lock(fileName, true, timeout);
+	}
+
+	public void unlockShared(String fileName) {
+		unlock(fileName, false);
+	}
+
+	public void unlockExclusive(String fileName) {
+		unlock(fileName, true);
+	}
+
+	private HashMap<String, FileLock> stripe(String fileName) {
+		return stripes[(fileName.hashCode() & 0x7fffffff) % STRIPES];
+	}
+
+	private boolean lock(String fileName, boolean exclusive, long timeout) throws InterruptedException {
+		HashMap<String, FileLock> stripe = stripe(fileName);
+		FileLock lock;
+		synchronized (stripe) {
+			lock = stripe.get(fileName);
+			if (lock == null) {
+				lock = new FileLock();
+				stripe.put(fileName, lock);
+			}
+			lock.references++;
+		}
+
+		Waiter waiter;
+		synchronized (lock) {
+			if (lock.waiters.isEmpty() && lock.compatible(exclusive)) {
+				lock.grant(exclusive);
+				return true;
+			}
+
+			waiter = new Waiter(exclusive);
+			lock.waiters.add(waiter);
+		}
+
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		while (!waiter.granted) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0 || Thread.interrupted()) {
+				synchronized (lock) {
+					if (!waiter.granted) {
+						lock.waiters.remove(waiter);
+
+						// waiters queued behind this one may be grantable now
+						lock.grantWaiters();
+						release(fileName, lock);
+
+						if (remaining > 0)
+							throw new InterruptedException();
+						return false;
+					}
+				}
+				return true;
+			}
+			LockSupport.parkNanos(this, remaining);
+		}
+		return true;
+	}
+
+	private void unlock(String fileName, boolean exclusive) {
+		HashMap<String, FileLock> stripe = stripe(fileName);
+		FileLock lock;
+		synchronized (stripe) {
+			lock = stripe.get(fileName);
+		}
+		if (lock == null)
+			throw new IllegalMonitorStateException(fileName + " is not locked");
+
+		synchronized (lock) {
+			if (exclusive)
+				lock.exclusive = false;
+			else
+				lock.shared--;
+			lock.grantWaiters();
+		}
+		release(fileName, lock);
+	}
+
+	/**
+	 * drops a reference to the lock, and the lock itself when it is not
+	 * referenced any more
+	 * */
+	private void release(String fileName, FileLock lock) {
+		HashMap<String, FileLock> stripe = stripe(fileName);
+		synchronized (stripe) {
+			if (--lock.references == 0)
+				stripe.remove(fileName);
+		}
+	}
+
+	/**
+	 * @return number of files currently locked or waited for
+	 * */
+	public int getLockedFilesCount() {
+		int count = 0;
+		for (HashMap<String, FileLock> stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.size();
+			}
+		}
+		return count;
+	}
+
+	class FileLock {
+		/**
+		 * number of threads holding or waiting for this lock, guarded by the
+		 * stripe
+		 * */
+		int references = 0;
+
+		int shared = 0;
+		boolean exclusive = false;
+		ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+
+		boolean compatible(boolean exclusiveRequest) {
+			if (exclusiveRequest)
+				return !exclusive && shared == 0;
+			return !exclusive;
+		}
+
+		void grant(boolean exclusiveRequest) {
+			if (exclusiveRequest)
+				exclusive = true;
+			else
+				shared++;
+		}
+
+		/**
+		 * hands the lock to the waiters at the head of the queue as long as
+		 * they are compatible with the current holders
+		 * */
+		void grantWaiters() {
+			while (!waiters.isEmpty() && compatible(waiters.peek().exclusive)) {
+				Waiter waiter = waiters.poll();
+				grant(waiter.exclusive);
+				waiter.granted = true;
+				LockSupport.unpark(waiter.thread);
+			}
+		}
+	}
+
+	class Waiter {
+		boolean exclusive;
+		Thread thread = Thread.currentThread();
+		volatile boolean granted = false;
+
+		Waiter(boolean exclusive) {
+			this.exclusive = exclusive;
+		}
+	}
+}
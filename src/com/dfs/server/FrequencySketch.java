@@ -0,0 +1,89 @@
+package com.dfs.server;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often keys have been
+ * seen recently. Each key is counted in four counters and its frequency is
+ * the smallest of them. All the counters are halved once the number of
+ * recorded events reaches the sample size, so the estimates age and follow
+ * the current popularity of the keys.
+ * */
+public class FrequencySketch {
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+
+	/**
+	 * each long holds 16 counters
+	 * */
+	private long[] table;
+	private int tableMask;
+	private int sampleSize;
+	private int additions = 0;
+
+	/**
+	 * @param expectedKeys
+	 *            number of keys expected to be tracked at the same time
+	 * */
+	public FrequencySketch(int expectedKeys) {
+		int length = Integer.highestOneBit(Math.max(expectedKeys, 16) - 1) << 1;
+		table = new long[length];
+		tableMask = length - 1;
+		sampleSize = 10 * length;
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 17;
+		hash *= 0xed5ad4bb;
+		hash ^= hash >>> 11;
+		hash *= 0xac4c1b51;
+		hash ^= hash >>> 15;
+		return hash;
+	}
+
+	/**
+	 * @return index in the table of the i-th counter of the key
+	 * */
+	private int index(int hash, int i) {
+		long h = (hash + (long) i * 0x9E3779B97F4A7C15L) * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & tableMask;
+	}
+
+	/**
+	 * @return position in the long of the i-th counter of the key
+	 * */
+	private static int offset(int hash, int i) {
+		return (((hash >>> (i << 3)) & 0xf) << 2);
+	}
+
+	public synchronized void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			int index = index(hash, i);
+			int offset = offset(hash, i);
+			long count = (table[index] >>> offset) & 0xf;
+			if (count < MAX_COUNT) {
+				table[index] += 1L << offset;
+				added = true;
+			}
+		}
+
+		if (added && ++additions >= sampleSize)
+			reset();
+	}
+
+	public synchronized int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < 4; i++) {
+			int count = (int) ((table[index(hash, i)] >>> offset(hash, i)) & 0xf);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++)
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		additions /= 2;
+	}
+}
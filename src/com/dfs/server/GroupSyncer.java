@@ -0,0 +1,141 @@
+package com.dfs.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forces committed files to disk on behalf of concurrent commits. The first
+ * commit waiting opens a short window, and all commits arriving in that
+ * window are forced together: each file is forced once however many commits
+ * touched it, then all of them are released.
+ * */
+public class GroupSyncer extends Thread {
+	public static final long DEFAULT_WINDOW_MICROS = 1000;
+
+	private long windowMicros;
+	private List<SyncRequest> pending = new ArrayList<SyncRequest>();
+
+	private AtomicLong groups = new AtomicLong();
+	private AtomicLong forces = new AtomicLong();
+	private AtomicLong requests = new AtomicLong();
+
+	public GroupSyncer(long windowMicros) {
+		super("group-syncer");
+		this.windowMicros = windowMicros;
+		setDaemon(true);
+	}
+
+	/**
+	 * blocks until the data written to channel has been forced to disk
+	 *
+	 * @param path
+	 *            path of the file opened by channel, commits on the same path
+	 *            share one force
+	 * */
+	public void sync(String path, FileChannel channel) throws IOException {
+		SyncRequest request = new SyncRequest(path, channel);
+		synchronized (this) {
+			pending.add(request);
+			notifyAll();
+		}
+		requests.incrementAndGet();
+		request.await();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			List<SyncRequest> group;
+			try {
+				synchronized (this) {
+					while (pending.isEmpty())
+						wait();
+				}
+
+				// let other commits join this group
+				TimeUnit.MICROSECONDS.sleep(windowMicros);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				return;
+			}
+
+			synchronized (this) {
+				group = pending;
+				pending = new ArrayList<SyncRequest>();
+			}
+
+			HashMap<String, IOException> forced = new HashMap<String, IOException>();
+			for (SyncRequest request : group) {
+				if (!forced.containsKey(request.path)) {
+					IOException failure = null;
+					try {
+						request.channel.force(false);
+					} catch (IOException e) {
+						failure = e;
+					}
+					forced.put(request.path, failure);
+					forces.incrementAndGet();
+				}
+				request.done(forced.get(request.path));
+			}
+			groups.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return number of groups forced so far
+	 * */
+	public long getGroups() {
+		return groups.get();
+	}
+
+	/**
+	 * @return number of force calls made so far
+	 * */
+	public long getForces() {
+		return forces.get();
+	}
+
+	/**
+	 * @return number of commits synced so far
+	 * */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	class SyncRequest {
+		String path;
+		FileChannel channel;
+		boolean done = false;
+		IOException failure;
+
+		SyncRequest(String path, FileChannel channel) {
+			this.path = path;
+			this.channel = channel;
+		}
+
+		synchronized void done(IOException failure) {
+			this.failure = failure;
+			this.done = true;
+			notifyAll();
+		}
+
+		synchronized void await() throws IOException {
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while waiting for sync", e);
+				}
+			}
+			if (failure != null)
+				throw failure;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package com.dfs.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.ds.interfaces.FileContents;
+
+/**
+ * Cache of the contents of recently read files bounded by their total size,
+ * with W-TinyLFU admission. New files enter a small LRU window, and a file
+ * leaving the window only replaces the least recently used file of the main
+ * area if it has been read more often recently, as estimated by a frequency
+ * sketch. A file read once, like a large file scanned by a single client,
+ * does not push the hot files out of the cache.
+ *
+ * The main area is split in a probation and a protected LRU, files read
+ * again while in probation are moved to the protected part.
+ * */
+public class HotFileCache {
+	public static final long DEFAULT_CAPACITY = 32 * 1024 * 1024; // 32 MB
+
+	/**
+	 * share of the capacity given to the window and to the protected area
+	 * */
+	private static final double WINDOW_SHARE = 0.01;
+	private static final double PROTECTED_SHARE = 0.8;
+
+	private long windowCapacity;
+	private long mainCapacity;
+	private long protectedCapacity;
+
+	private LinkedHashMap<String, FileContents> window = new LinkedHashMap<String, FileContents>(16, 0.75f, true);
+	private LinkedHashMap<String, FileContents> probation = new LinkedHashMap<String, FileContents>(16, 0.75f, true);
+	private LinkedHashMap<String, FileContents> protectedFiles = new LinkedHashMap<String, FileContents>(16, 0.75f, true);
+	private long windowSize = 0;
+	private long probationSize = 0;
+	private long protectedSize = 0;
+
+	private FrequencySketch sketch;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long rejections = 0;
+	private long invalidations = 0;
+
+	public HotFileCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of bytes cached
+	 * */
+	public HotFileCache(long capacity) {
+		this.windowCapacity = Math.max(FileContents.BUFFER_SIZE, (long) (capacity * WINDOW_SHARE));
+		this.mainCapacity = Math.max(0, capacity - windowCapacity);
+		this.protectedCapacity = (long) (mainCapacity * PROTECTED_SHARE);
+
+		// sized for files of the average size of a message
+		this.sketch = new FrequencySketch((int) Math.min(1 << 20, capacity / FileContents.BUFFER_SIZE));
+	}
+
+	/**
+	 * @return the cached contents of the file or null
+	 * */
+	public synchronized FileContents get(String fileName) {
+		sketch.increment(fileName);
+
+		FileContents contents = window.get(fileName);
+		if (contents == null) {
+			contents = protectedFiles.get(fileName);
+		}
+		if (contents == null) {
+			contents = probation.remove(fileName);
+			if (contents != null) {
+				probationSize -= size(contents);
+				protectedFiles.put(fileName, contents);
+				protectedSize += size(contents);
+				demoteProtected();
+			}
+		}
+
+		if (contents == null)
+			misses++;
+		else
+			hits++;
+		return contents;
+	}
+
+	/**
+	 * caches the contents of a file that has just been read
+	 * */
+	public synchronized void put(String fileName, FileContents contents) {
+		if (contents.get() == null)
+			return;
+		remove(fileName);
+
+		window.put(fileName, contents);
+		windowSize += size(contents);
+
+		Iterator<Map.Entry<String, FileContents>> it = window.entrySet().iterator();
+		while (windowSize > windowCapacity && it.hasNext()) {
+			Map.Entry<String, FileContents> candidate = it.next();
+			it.remove();
+			windowSize -= size(candidate.getValue());
+			admit(candidate.getKey(), candidate.getValue());
+		}
+	}
+
+	/**
+	 * drops the file from the cache, this is called when the file is changed
+	 * by a commit
+	 * */
+	public synchronized void invalidate(String fileName) {
+		if (remove(fileName))
+			invalidations++;
+	}
+
+	/**
+	 * moves a file leaving the window to the main area if it is more popular
+	 * than the files it would evict
+	 * */
+	private void admit(String fileName, FileContents contents) {
+		long size = size(contents);
+		if (size > mainCapacity) {
+			rejections++;
+			return;
+		}
+
+		int frequency = sketch.frequency(fileName);
+		while (probationSize + protectedSize + size > mainCapacity) {
+			LinkedHashMap<String, FileContents> victims = probation.isEmpty() ? protectedFiles : probation;
+			Map.Entry<String, FileContents> victim = victims.entrySet().iterator().next();
+			if (frequency <= sketch.frequency(victim.getKey())) {
+				rejections++;
+				return;
+			}
+
+			victims.remove(victim.getKey());
+			if (victims == probation)
+				probationSize -= size(victim.getValue());
+			else
+				protectedSize -= size(victim.getValue());
+			evictions++;
+		}
+
+		probation.put(fileName, contents);
+		probationSize += size;
+	}
+
+	/**
+	 * moves the least recently used protected files back to probation while
+	 * the protected area is over its capacity
+	 * */
+	private void demoteProtected() {
+		Iterator<Map.Entry<String, FileContents>> it = protectedFiles.entrySet().iterator();
+		while (protectedSize > protectedCapacity && it.hasNext()) {
+			Map.Entry<String, FileContents> entry = it.next();
+			it.remove();
+			protectedSize -= size(entry.getValue());
+			probation.put(entry.getKey(), entry.getValue());
+			probationSize += size(entry.getValue());
+		}
+	}
+
+	private boolean remove(String fileName) {
+		FileContents old = window.remove(fileName);
+		if (old != null) {
+			windowSize -= size(old);
+			return true;
+		}
+		old = probation.remove(fileName);
+		if (old != null) {
+			probationSize -= size(old);
+			return true;
+		}
+		old = protectedFiles.remove(fileName);
+		if (old != null) {
+			protectedSize -= size(old);
+			return true;
+		}
+		return false;
+	}
+
+	private static long size(FileContents contents) {
+		return contents.get().length;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized double getHitRatio() {
+		long requests = hits + misses;
+		return requests == 0 ? 0 : (double) hits / requests;
+	}
+
+	/**
+	 * @return number of cached files evicted to make room for more popular
+	 *         ones
+	 * */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return number of files not admitted in the cache because they were
+	 *         less popular than the files they would evict
+	 * */
+	public synchronized long getRejections() {
+		return rejections;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * @return number of cached bytes
+	 * */
+	public synchronized long getSize() {
+		return windowSize + probationSize + protectedSize;
+	}
+
+	public synchronized String toString() {
+		return String.format("files=%d bytes=%d hits=%d misses=%d ratio=%.2f evictions=%d rejections=%d invalidations=%d",
+				window.size() + probation.size() + protectedFiles.size(), getSize(), hits, misses, getHitRatio(),
+				evictions, rejections, invalidations);
+	}
+}
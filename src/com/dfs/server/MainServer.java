@@ -6,28 +6,46 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.rmi.AlreadyBoundException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Random;
-import java.util.Set;
+import java.util.List;
 import java.util.StringTokenizer;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.dfs.common.Hedger;
+import com.dfs.common.ReplicaSelector;
 import com.dfs.heartbeats.HeartbeatsResponder;
+import com.dfs.log.AbstractLogger;
+import com.dfs.log.BinaryLogger;
+import com.dfs.log.LogReplayListener;
 import com.dfs.log.Logger;
 import com.ds.interfaces.ClientInterface;
 import com.ds.interfaces.FileContents;
 import com.ds.interfaces.MessageNotFoundException;
+import com.ds.interfaces.ReplicaLocation;
 import com.ds.interfaces.ReplicaServerInterface;
+import com.ds.interfaces.ReplicationEvent;
 import com.ds.interfaces.SecondaryServerInterface;
+import com.ds.interfaces.ServerBusyException;
 import com.ds.interfaces.ServerInterface;
 
 public class MainServer implements ServerInterface, HeartbeatsResponder {
@@ -37,28 +55,134 @@ public class MainServer implements ServerInterface, HeartbeatsResponder {
 	private ArrayList<ReplicaServerInfo> replicaservers = new ArrayList<MainServer.ReplicaServerInfo>();
 
 	/**
-	 * Hashtable of all transaction
+	 * replicas handed to the clients reading files directly
 	 * */
-	private Hashtable<Long, Transaction> transactions = new Hashtable<Long, Transaction>();
+	private ReplicaLocation[] replicaLocations = new ReplicaLocation[0];
+	private AtomicInteger chainStart = new AtomicInteger();
+
+	/**
+	 * table of all transaction
+	 * */
+	private TransactionTable transactions = new TransactionTable();
 
 	/**
 	 * Hashtable of all clients
 	 * */
 	private Hashtable<String, ClientInterface> clients = new Hashtable<String, ClientInterface>();
 
-//	private Set<String> fileLocks = Collections.synchronizedSet(new HashSet<String>());
-	private HashSet<String> fileLocks = new HashSet<String>();
+	/**
+	 * sessions opened by the registered clients keyed by their auth token,
+	 * guarded by itself
+	 * */
+	private HashMap<String, ClientSession> sessions = new HashMap<String, ClientSession>();
+
+	/**
+	 * auth token of the client whose session is running the current call
+	 * */
+	private ThreadLocal<String> sessionToken = new ThreadLocal<String>();
+
+	/**
+	 * port the server and the client sessions are exported on
+	 * */
+	private int port;
+
+	/**
+	 * bounds the calls running in the server, null if disabled which is the
+	 * default
+	 * */
+	private volatile AdmissionController admission;
+
+	/**
+	 * shared locks are held by reads and exclusive locks by commits
+	 * */
+	private FileLockManager fileLocks = new FileLockManager();
+	private long lockTimeout = FileLockManager.DEFAULT_TIMEOUT;
 	
 	/**
 	 * Logger instance to log clients interaction with the server
 	 * */
-	private Logger logger;
-	private Random random;
+	private AbstractLogger logger;
+
+	/**
+	 * cached stubs of the replica servers
+	 * */
+	private ReplicaStubCache replicaStubs = new ReplicaStubCache();
+
+	/**
+	 * concurrent sender of writes, commits and aborts to the replicas
+	 * */
+	private ReplicaFanout replicaFanout = new ReplicaFanout(replicaStubs);
+
+	/**
+	 * chooses the replica serving each read from the replicas latency and
+	 * load
+	 * */
+	private ReplicaSelector<ReplicaServerInfo> replicaSelector = new ReplicaSelector<ReplicaServerInfo>();
+
+	/**
+	 * sends slow reads to a second replica when hedged reads are enabled
+	 * */
+	private Hedger<ReplicaServerInfo> hedger = new Hedger<ReplicaServerInfo>(replicaSelector);
+	private boolean hedgedReads = false;
+
+	/**
+	 * contents of the most read files, served without contacting the
+	 * replicas, null if disabled
+	 * */
+	private volatile HotFileCache hotFiles = new HotFileCache();
+
+	/**
+	 * number of replicas that have to acknowledge a write, commit or abort
+	 * before it is acknowledged to the client, 0 means all replicas
+	 * */
+	private int writeQuorum = 0;
 	private static long idleTimeout = 60000; // 1 minute
+	
+	/**
+	 * generator of the transactions ids, the secondary server uses its own
+	 * node after taking over so its ids never collide with the main server
+	 * ones
+	 * */
+	private TransactionIdGenerator txnIds;
+	
+	/**
+	 * resolution of the transactions idle timeouts
+	 * */
+	private static final long EXPIRY_TICK = 100;
+	
+	/**
+	 * idle deadlines of the transactions, checked every EXPIRY_TICK
+	 * */
+	private TimerWheel expiryWheel = new TimerWheel(EXPIRY_TICK, 3, System.currentTimeMillis());
+	
+	/**
+	 * threads aborting the idle transactions
+	 * */
+	private ExecutorService abortExecutor = Executors.newFixedThreadPool(4, new ThreadFactory() {
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "transactions-abort-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * writes checkpoints of transactions and clients tables
+	 * */
+	private Checkpointer checkpointer;
+	private long checkpointInterval = Checkpointer.DEFAULT_INTERVAL;
 
 	// secondary server attributes
 	SecondaryServerInterface secondaryServer;
 
+	/**
+	 * asynchronous stream of events to the secondary server
+	 * */
+	ReplicationStream replication;
+
 	public static final String MAIN_SERVER_HEARTBEAT_NAME = "main_server_responder";
 
 	/**
@@ -66,193 +190,719 @@ public class MainServer implements ServerInterface, HeartbeatsResponder {
 	 * running new MainServer instance from the secondary server when the
 	 * original main server is failed.
 	 * */
-	public MainServer(Logger logger,
+	public MainServer(AbstractLogger logger,
 			Hashtable<String, ClientInterface> clients,
-			Hashtable<Long, Transaction> transactions, String directoryPath) {
+			TransactionTable transactions, String directoryPath) {
 
 		this.logger = logger;
 		this.directory_path = directoryPath;
 		this.clients = clients;
 		this.transactions = transactions;
-		this.random = new Random(System.currentTimeMillis());
+		this.txnIds = new TransactionIdGenerator(TransactionIdGenerator.SECONDARY_SERVER_NODE);
 	}
 
 	public MainServer(String secondaryServerHost, int secondaryServerPort, String directoryPath)
-			throws RemoteException, NotBoundException {
+			throws IOException, NotBoundException {
+		this(secondaryServerHost, secondaryServerPort, directoryPath, false);
+	}
+
+	/**
+	 * @param binaryLog
+	 *            log into checksummed binary segments in the binlog directory
+	 *            instead of the text log
+	 * @throws IOException
+	 *             if the state can not be recovered from the checkpoint and
+	 *             the log
+	 * */
+	public MainServer(String secondaryServerHost, int secondaryServerPort, String directoryPath, boolean binaryLog)
+			throws IOException, NotBoundException {
 		if (directoryPath != null) {
 			this.directory_path = directoryPath;
 			this.log_path = directory_path + "log/";
 		}
 		
 		this.clients = new Hashtable<String, ClientInterface>();
-		this.random = new Random(System.currentTimeMillis());
+		this.txnIds = new TransactionIdGenerator(TransactionIdGenerator.MAIN_SERVER_NODE);
 		
 		// getting access to the secondary server if it is given as paramter
 		if (secondaryServerHost != null) {
 			Registry registry = LocateRegistry.getRegistry(secondaryServerHost, secondaryServerPort);
 			secondaryServer = (SecondaryServerInterface) registry.lookup(DFS_SECONDARY_SERVER_UNIQUE_NAME);
+			
+			replication = new ReplicationStream(secondaryServer, new SnapshotSource() {
+				@Override
+				public ReplicationEvent snapshot() {
+					return replicationSnapshot();
+				}
+			});
+			replication.start();
 		}
 
 		// creating working directories
 		new File(log_path).mkdir();
 
 		// create logger
-		this.logger = new Logger();
-		this.logger.init(log_path + "log.txt");
+		if (binaryLog) {
+			this.logger = new BinaryLogger();
+			this.logger.init(log_path + "binlog/");
+		} else {
+			this.logger = new Logger();
+			this.logger.init(log_path + "log.txt");
+		}
+
+		recover();
+	}
+
+	/**
+	 * rebuilds the transactions and clients tables from the last checkpoint
+	 * and the log written after it
+	 * */
+	private void recover() throws IOException {
+		long segment = Checkpointer.load(logger, transactions, clients);
+		
+		logger.replay(segment, new LogReplayListener() {
+			@Override
+			public void onTransaction(long txnID, int state, String fileName, long time) {
+				Transaction tx = transactions.get(txnID);
+				if (tx == null) {
+					transactions.put(txnID, new Transaction(fileName, state, txnID, time));
+				} else {
+					tx.setState(state);
+					tx.setLastEdited(time);
+				}
+			}
+
+			@Override
+			public void onWriteRequest(long txnID, long msgID, long msgSize, long time) {
+				Transaction tx = transactions.get(txnID);
+				if (tx != null)
+					tx.setLastEdited(time);
+			}
+
+			@Override
+			public void onReadFile(String fileName, long time) {
+			}
+		});
+		
+		System.out.println("recovered " + transactions.size() + " transactions and "
+				+ clients.size() + " clients");
 	}
 
 	ReplicaServerInterface getServer(ReplicaServerInfo replicaServerInfo) {
-		Registry registry;
+		return replicaStubs.get(replicaServerInfo);
+	}
+
+	/**
+	 * @return the stream of events to the secondary server, null if the
+	 *         server runs without secondary
+	 * */
+	public ReplicationStream getReplication() {
+		return replication;
+	}
+
+	/**
+	 * sets the number of events the secondary server may lag behind before
+	 * the server threads wait for it, see {@link ReplicationStream}
+	 * */
+	public void setReplicationMaxLag(int maxLag) {
+		if (replication != null)
+			replication.setMaxLag(maxLag);
+	}
+
+	/**
+	 * @return snapshot of the transactions and clients tables sent to a
+	 *         secondary server that has missed events
+	 * */
+	private ReplicationEvent replicationSnapshot() {
+		List<Transaction> txns = transactions.values();
+		long[] txnIDs = new long[txns.size()];
+		int[] states = new int[txns.size()];
+		String[] fileNames = new String[txns.size()];
+		long[] times = new long[txns.size()];
+		for (int i = 0; i < txnIDs.length; i++) {
+			Transaction tx = txns.get(i);
+			txnIDs[i] = tx.getId();
+			states[i] = tx.getState();
+			fileNames[i] = tx.getFileName();
+			times[i] = tx.getLastEdited();
+		}
+
+		Hashtable<String, ClientInterface> clientsCopy;
+		synchronized (clients) {
+			clientsCopy = new Hashtable<String, ClientInterface>(clients);
+		}
+		return ReplicationEvent.snapshot(txnIDs, states, fileNames, times, clientsCopy);
+	}
+
+	/**
+	 * sets the time between two checkpoints, takes effect on init
+	 * */
+	public void setCheckpointInterval(long checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * @return the checkpointer, null until the server is initialized
+	 * */
+	public Checkpointer getCheckpointer() {
+		return checkpointer;
+	}
+
+	/**
+	 * sets the number of replicas that have to acknowledge a write, commit or
+	 * abort before it is acknowledged to the client. The remaining replicas
+	 * finish in the background. 0 (the default) waits for all replicas.
+	 * */
+	public void setWriteQuorum(int writeQuorum) {
+		this.writeQuorum = writeQuorum;
+	}
+
+	public int getWriteQuorum() {
+		return writeQuorum;
+	}
+
+	/**
+	 * @return the concurrent replica sender, exposed for monitoring replica
+	 *         failures
+	 * */
+	public ReplicaFanout getReplicaFanout() {
+		return replicaFanout;
+	}
+
+	/**
+	 * sends a read that has not been answered within the 95th percentile of
+	 * the reads latency to a second replica as well, the hedges are limited
+	 * to 10% of the reads by default, see Hedger
+	 * */
+	public void setHedgedReads(boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+	}
+
+	public Hedger<ReplicaServerInfo> getHedger() {
+		return hedger;
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of bytes of the hot files cache, 0 disables
+	 *            it
+	 * */
+	public void setHotFileCacheCapacity(long capacity) {
+		this.hotFiles = capacity > 0 ? new HotFileCache(capacity) : null;
+	}
+
+	/**
+	 * @return the hot files cache, exposed for monitoring its hit ratio and
+	 *         evictions, or null if disabled
+	 * */
+	public HotFileCache getHotFileCache() {
+		return hotFiles;
+	}
+
+	/**
+	 * @return selector of the replicas serving reads, its toString reports
+	 *         the state of each replica
+	 * */
+	public ReplicaSelector<ReplicaServerInfo> getReplicaSelector() {
+		return replicaSelector;
+	}
+
+	/**
+	 * enables the admission control, which is disabled by default
+	 *
+	 * @param maxConcurrent
+	 *            number of calls running at the same time, 0 disables the
+	 *            admission control
+	 * @param clientQuota
+	 *            number of calls of one client running at the same time
+	 * */
+	public void setAdmissionLimits(int maxConcurrent, int clientQuota) {
+		admission = maxConcurrent > 0 ? new AdmissionController(maxConcurrent, clientQuota) : null;
+	}
+
+	public AdmissionController getAdmission() {
+		return admission;
+	}
+
+	/**
+	 * @return the replica stubs cache, exposed for monitoring its hit/miss
+	 *         counters and replicas health
+	 * */
+	public ReplicaStubCache getReplicaStubs() {
+		return replicaStubs;
+	}
+
+	@Override
+	public FileContents read(final String fileName) throws FileNotFoundException,
+			IOException, RemoteException, ServerBusyException {
+		AdmissionController.Ticket ticket = admit(AdmissionController.READ);
 		try {
-			registry = LocateRegistry.getRegistry(replicaServerInfo.hostName, replicaServerInfo.port);
-			return (ReplicaServerInterface) registry.lookup(replicaServerInfo.uniqueName);
-		} catch (RemoteException e) {
-			e.printStackTrace();
-		} catch (NotBoundException e) {
-			e.printStackTrace();
+			HotFileCache cache = hotFiles;
+			FileContents contents = cache == null ? null : cache.get(fileName);
+			if (contents != null) {
+				logRead(fileName);
+				return contents;
+			}
+			
+			if (!lockFile(fileName, false))
+				throw new IOException("timed out waiting for the lock on " + fileName);
+			
+			try {
+				contents = readReplica(new ReplicaCall<FileContents, IOException>() {
+					@Override
+					public FileContents call(ReplicaServerInterface server) throws IOException {
+						return server.read(fileName);
+					}
+				});
+				
+				// cached while the file is locked, so a commit can not change the
+				// file before it is cached
+				if (cache != null && contents != null)
+					cache.put(fileName, contents);
+			} finally {
+				fileLocks.unlockShared(fileName);
+			}
+			
+			logRead(fileName);
+
+			// return FileContent instance
+			return contents;
+		} finally {
+			release(ticket);
 		}
-		return null;
 	}
 
 	@Override
-	public FileContents read(String fileName) throws FileNotFoundException,
-			IOException, RemoteException {
-		
-		int idx = random.nextInt(replicaservers.size());
-		
-		ServerInterface rServer = (ServerInterface) getServer(replicaservers.get(idx));
-		FileContents contents = rServer.read(fileName);
-		
-		long time = System.currentTimeMillis();
-		logger.logReadFile(fileName, time);
+	public FileContents read(final String fileName, final long offset, final int length)
+			throws FileNotFoundException, IOException, RemoteException, ServerBusyException {
+		if (offset < 0 || length < 0)
+			throw new IOException("invalid range " + offset + "+" + length + " of " + fileName);
 
-		if (secondaryServer != null)
-			secondaryServer.read(fileName, time);
+		AdmissionController.Ticket ticket = admit(AdmissionController.READ);
+		try {
+			if (!lockFile(fileName, false))
+				throw new IOException("timed out waiting for the lock on " + fileName);
 
-		// return FileContent instance
-		return contents;
+			FileContents contents;
+			try {
+				contents = readReplica(new ReplicaCall<FileContents, IOException>() {
+					@Override
+					public FileContents call(ReplicaServerInterface server) throws IOException {
+						return server.read(fileName, offset, length);
+					}
+				});
+			} finally {
+				fileLocks.unlockShared(fileName);
+			}
+
+			// a streamed file is logged once, when its first chunk is read
+			if (offset == 0)
+				logRead(fileName);
+
+			return contents;
+		} finally {
+			release(ticket);
+		}
 	}
 
 	@Override
-	public long newTxn(String fileName) throws RemoteException, IOException {
-		// generate new transaction id
-		long time = System.currentTimeMillis();
-		long txnId = time;
-		// create transaction object and log it
-		Transaction tx = new Transaction(fileName, Transaction.STARTED, txnId, time);
-		
-		logger.logTransaction(tx, time);
-		transactions.put(txnId, tx);
-		
-		if (secondaryServer != null)
-			secondaryServer.newTxn(fileName, txnId, time);
-		
-		return txnId;
+	public FileContents readIfModified(final String fileName, final long version)
+			throws FileNotFoundException, IOException, RemoteException, ServerBusyException {
+		AdmissionController.Ticket ticket = admit(AdmissionController.READ);
+		try {
+			HotFileCache cache = hotFiles;
+			FileContents contents = cache == null ? null : cache.get(fileName);
+			if (contents != null) {
+				if (contents.getVersion() <= version)
+					return new FileContents(null, contents.getVersion());
+				logRead(fileName);
+				return contents;
+			}
+
+			if (!lockFile(fileName, false))
+				throw new IOException("timed out waiting for the lock on " + fileName);
+
+			try {
+				contents = readReplica(new ReplicaCall<FileContents, IOException>() {
+					@Override
+					public FileContents call(ReplicaServerInterface server) throws IOException {
+						return server.readIfModified(fileName, version);
+					}
+				});
+
+				if (cache != null && contents != null && contents.isModified())
+					cache.put(fileName, contents);
+			} finally {
+				fileLocks.unlockShared(fileName);
+			}
+
+			// only reads that transfer the file are logged
+			if (contents != null && contents.isModified())
+				logRead(fileName);
+
+			return contents;
+		} finally {
+			release(ticket);
+		}
 	}
 
 	@Override
-	public int write(long txnID, long msgSeqNum, byte[] data)
-			throws RemoteException, IOException {
-		// check if the transaction id is correct
-		if (!transactions.containsKey(txnID)) {
-			return INVALID_TRANSACTION_ID;
+	public ReplicaLocation[] lookup(String fileName) throws RemoteException, ServerBusyException {
+		AdmissionController.Ticket ticket = admit(AdmissionController.READ);
+		try {
+			// direct reads do not take the file lock, a read running with a
+			// commit of the file may see only a part of the committed data
+			logRead(fileName);
+			return replicaLocations;
+		} finally {
+			release(ticket);
 		}
+	}
 
-		// check if the transaction has been already committed
-		if (transactions.get(txnID).getState() == Transaction.COMMITED) {
-			return INVALID_OPERATION;
-		}
+	/**
+	 * runs the read on the replica chosen by the replica selector, or through
+	 * the hedger when hedged reads are enabled, and reports its latency or
+	 * failure back to the selector. Errors returned by the replica itself,
+	 * like a missing file, do not count as failures.
+	 * */
+	private FileContents readReplica(final ReplicaCall<FileContents, IOException> call) throws IOException {
+		Hedger.Request<ReplicaServerInfo, FileContents, IOException> request = new Hedger.Request<ReplicaServerInfo, FileContents, IOException>() {
+			@Override
+			public FileContents call(ReplicaServerInfo info) throws IOException {
+				return replicaStubs.invoke(info, call);
+			}
+		};
 		
-		for (ReplicaServerInfo name : replicaservers) {
-			ReplicaServerInterface server = (ReplicaServerInterface) getServer(name);
-			
-			if (server != null)
-				server.write(txnID, msgSeqNum, data);
+		if (hedgedReads)
+			return hedger.invoke(replicaservers, request);
+		return replicaSelector.invoke(replicaservers, request);
+	}
+
+	/**
+	 * admits a call of a client, calls made by the server itself, like the
+	 * aborts of idle transactions, are not counted
+	 *
+	 * @return ticket to be released when the call is done, or null
+	 * @throws ServerBusyException
+	 *             if the call is rejected
+	 * */
+	private AdmissionController.Ticket admit(int lane) throws ServerBusyException {
+		AdmissionController controller = admission;
+		if (controller == null)
+			return null;
+
+		// calls made through a client session are counted against its auth
+		// token, the others against the host of the caller
+		String token = sessionToken.get();
+		if (token == null) {
+			token = clientHost();
+			if (token == null)
+				return null;
+		}
+		return controller.admit(token, lane);
+	}
+
+	private static void release(AdmissionController.Ticket ticket) {
+		if (ticket != null)
+			ticket.release();
+	}
+
+	/**
+	 * @return the first answer of the replicas that is not ACK, or ACK
+	 * */
+	private static int firstFailure(List<Integer> acks) {
+		for (int ack : acks) {
+			if (ack != ACK)
+				return ack;
 		}
-		
-		// log this write request
-		long time = System.currentTimeMillis();
-		logger.logWriteRequest(txnID, msgSeqNum, data.length, time);
-		
-		if (secondaryServer != null)
-			secondaryServer.write(txnID, msgSeqNum, data.length, time);
-		
 		return ACK;
 	}
 
+	/**
+	 * @return host of the client of the current remote call, or null if not
+	 *         called remotely
+	 * */
+	private static String clientHost() {
+		try {
+			return RemoteServer.getClientHost();
+		} catch (ServerNotActiveException e) {
+			return null;
+		}
+	}
+
+	private void logRead(String fileName) throws RemoteException {
+		long time = System.currentTimeMillis();
+		logger.logReadFile(fileName, time);
+
+		if (replication != null)
+			replication.publish(ReplicationEvent.read(fileName, time));
+	}
+
 	@Override
-	public int commit(final long txnID, long numOfMsgs)
-			throws MessageNotFoundException, RemoteException {
-		// check if the transaction id is correct
-		if (!transactions.containsKey(txnID)) {
-			return INVALID_TRANSACTION_ID;
-		}
-		// check if the transaction has been already committed
-		if (transactions.get(txnID).getState() == Transaction.COMMITED) {
-			// the client me request resending the ack message
-			return ACK;
+	public long newTxn(String fileName) throws RemoteException, IOException, ServerBusyException {
+		AdmissionController.Ticket ticket = admit(AdmissionController.WRITE);
+		try {
+			// generate new transaction id
+			long txnId = txnIds.nextId();
+			long time = System.currentTimeMillis();
+			// create transaction object and log it
+			Transaction tx = new Transaction(fileName, Transaction.STARTED, txnId, time);
+			
+			// tables are updated before logging, see Checkpointer.checkpoint
+			transactions.put(txnId, tx);
+			expiryWheel.schedule(txnId, time + idleTimeout);
+			logger.logTransaction(tx, time);
+			
+			if (replication != null)
+				replication.publish(ReplicationEvent.newTxn(fileName, txnId, time));
+			
+			return txnId;
+		} finally {
+			release(ticket);
 		}
-		
-		Transaction tx = transactions.get(txnID);
-		
-		// granting lock on the file name
-		grantFileLock(tx.getFileName());
-		
-		for (ReplicaServerInfo name : replicaservers) {
-			ReplicaServerInterface server = (ReplicaServerInterface) getServer(name);
+	}
+
+	@Override
+	public int write(final long txnID, final long msgSeqNum, final byte[] data)
+			throws RemoteException, IOException, ServerBusyException {
+		AdmissionController.Ticket ticket = admit(AdmissionController.WRITE);
+		try {
+			// check if the transaction id is correct
+			Transaction tx = transactions.get(txnID);
+			if (tx == null) {
+				return INVALID_TRANSACTION_ID;
+			}
+
+			// check if the transaction has been already committed
+			if (tx.getState() == Transaction.COMMITED) {
+				return INVALID_OPERATION;
+			}
+			
+			// every write pushes the idle deadline of the transaction
+			tx.setLastEdited(System.currentTimeMillis());
+			
+			int ack = firstFailure(replicaFanout.invoke(replicaservers, new ReplicaCall<Integer, IOException>() {
+				@Override
+				public Integer call(ReplicaServerInterface server) throws IOException {
+					return server.write(txnID, msgSeqNum, data);
+				}
+			}, writeQuorum));
+			if (ack != ACK)
+				return ack;
+			
+			// log this write request
+			long time = System.currentTimeMillis();
+			logger.logWriteRequest(txnID, msgSeqNum, data.length, time);
 			
-			if (server != null)
-				server.commit(txnID, numOfMsgs, tx.getFileName());
+			if (replication != null)
+				replication.publish(ReplicationEvent.write(txnID, msgSeqNum, data.length, time));
+			
+			return ACK;
+		} finally {
+			release(ticket);
 		}
-		
-		// update transaction state and log it
-		tx.setState(Transaction.COMMITED);
-		long time = System.currentTimeMillis();
-		logger.logTransaction(tx, time);
-		
-		// release file lock
-		releaseFileLock(tx.getFileName());
-		
-		if (secondaryServer != null)
-			secondaryServer.commit(txnID, tx.getFileName(), time);
-		
-		return ACK;
 	}
 
 	@Override
-	public int abort(long txnID) throws RemoteException {
-		// check if the transaction id is correct
-		if (!transactions.containsKey(txnID)) {
-			return INVALID_TRANSACTION_ID;
+	public int writeBatch(final long txnID, final long[] msgSeqNums, final byte[][] data)
+			throws RemoteException, IOException, ServerBusyException {
+		AdmissionController.Ticket ticket = admit(AdmissionController.WRITE);
+		try {
+			if (msgSeqNums.length == 0 || msgSeqNums.length != data.length)
+				return INVALID_OPERATION;
+			
+			// check if the transaction id is correct
+			Transaction tx = transactions.get(txnID);
+			if (tx == null) {
+				return INVALID_TRANSACTION_ID;
+			}
+
+			// check if the transaction has been already committed
+			if (tx.getState() == Transaction.COMMITED) {
+				return INVALID_OPERATION;
+			}
+			
+			tx.setLastEdited(System.currentTimeMillis());
+			
+			int ack = firstFailure(replicaFanout.invoke(replicaservers, new ReplicaCall<Integer, IOException>() {
+				@Override
+				public Integer call(ReplicaServerInterface server) throws IOException {
+					return server.writeBatch(txnID, msgSeqNums, data);
+				}
+			}, writeQuorum));
+			if (ack != ACK)
+				return ack;
+			
+			// log the whole batch as one entry
+			long[] sizes = new long[data.length];
+			for (int i = 0; i < data.length; i++)
+				sizes[i] = data[i].length;
+			long time = System.currentTimeMillis();
+			logger.logWriteBatch(txnID, msgSeqNums, sizes, time);
+			
+			if (replication != null)
+				replication.publish(ReplicationEvent.writeBatch(txnID, msgSeqNums, sizes, time));
+			
+			return ACK;
+		} finally {
+			release(ticket);
 		}
+	}
 
-		// check if the transaction has been already committed
-		if (transactions.get(txnID).getState() == Transaction.COMMITED) {
-			// aborting commited transaction is invalid operation
-			return INVALID_OPERATION;
+	@Override
+	public ReplicaLocation[] writeChain(long txnID) throws RemoteException, ServerBusyException {
+		AdmissionController.Ticket ticket = admit(AdmissionController.WRITE);
+		try {
+			Transaction tx = transactions.get(txnID);
+			if (tx == null || tx.getState() != Transaction.STARTED)
+				return null;
+			
+			// the messages do not go through this server, so the transaction is
+			// only known to be in use when its chain is asked for
+			tx.setLastEdited(System.currentTimeMillis());
+			
+			// chains start at different replicas so the first replica does not
+			// receive all the writes
+			ReplicaLocation[] locations = replicaLocations;
+			ReplicaLocation[] chain = new ReplicaLocation[locations.length];
+			int first = locations.length == 0 ? 0 : (chainStart.getAndIncrement() & Integer.MAX_VALUE) % locations.length;
+			for (int i = 0; i < chain.length; i++)
+				chain[i] = locations[(first + i) % locations.length];
+			return chain;
+		} finally {
+			release(ticket);
 		}
+	}
 
-		// check if the transaction has been already aborted
-		if (transactions.get(txnID).getState() == Transaction.ABORTED) {
+	@Override
+	public int commit(final long txnID, final long numOfMsgs)
+			throws MessageNotFoundException, RemoteException, ServerBusyException {
+		AdmissionController.Ticket ticket = admit(AdmissionController.COMMIT);
+		try {
+			// check if the transaction id is correct
+			if (!transactions.containsKey(txnID)) {
+				return INVALID_TRANSACTION_ID;
+			}
+			// check if the transaction has been already committed
+			if (transactions.get(txnID).getState() == Transaction.COMMITED) {
+				// the client me request resending the ack message
+				return ACK;
+			}
+			
+			final Transaction tx = transactions.get(txnID);
+			
+			// granting lock on the file name
+			if (!lockFile(tx.getFileName(), true))
+				return LOCK_TIMEOUT;
+			
+			long time;
+			try {
+				replicaFanout.invoke(replicaservers, new ReplicaCall<Integer, MessageNotFoundException>() {
+					@Override
+					public Integer call(ReplicaServerInterface server) throws MessageNotFoundException, RemoteException {
+						return server.commit(txnID, numOfMsgs, tx.getFileName());
+					}
+				}, writeQuorum, exclusiveUnlocker(tx.getFileName()));
+				
+				// update transaction state and log it
+				tx.setState(Transaction.COMMITED);
+				time = System.currentTimeMillis();
+				logger.logTransaction(tx, time, true);
+			} finally {
+				// the file may have changed on some replicas even if the commit
+				// failed
+				HotFileCache cache = hotFiles;
+				if (cache != null)
+					cache.invalidate(tx.getFileName());
+			}
+			
+			if (replication != null)
+				replication.publish(ReplicationEvent.commit(txnID, tx.getFileName(), time));
+			
 			return ACK;
+		} finally {
+			release(ticket);
 		}
+	}
 
-		for (ReplicaServerInfo name : replicaservers) {
-			ReplicaServerInterface server = (ReplicaServerInterface) getServer(name);
+	@Override
+	public int append(final String fileName, final byte[] data) throws RemoteException, IOException, ServerBusyException {
+		AdmissionController.Ticket ticket = admit(AdmissionController.COMMIT);
+		try {
+			// the transaction is finished when this returns, so it is not kept
+			// in the transactions table
+			final long txnId = txnIds.nextId();
+			
+			if (!lockFile(fileName, true))
+				return LOCK_TIMEOUT;
 			
-			if (server != null)
-				server.abort(txnID);
+			long time;
+			try {
+				int ack = firstFailure(replicaFanout.invoke(replicaservers, new ReplicaCall<Integer, IOException>() {
+					@Override
+					public Integer call(ReplicaServerInterface server) throws IOException {
+						return server.append(txnId, fileName, data);
+					}
+				}, writeQuorum, exclusiveUnlocker(fileName)));
+				if (ack != ACK)
+					return ack;
+				
+				time = System.currentTimeMillis();
+				logger.logAppend(txnId, fileName, data.length, time, true);
+			} finally {
+				HotFileCache cache = hotFiles;
+				if (cache != null)
+					cache.invalidate(fileName);
+			}
+			
+			if (replication != null)
+				replication.publish(ReplicationEvent.append(txnId, fileName, data.length, time));
+			
+			return ACK;
+		} finally {
+			release(ticket);
 		}
-		
-		// update transaction state and log it
-		long time = System.currentTimeMillis();
-		transactions.get(txnID).setState(Transaction.ABORTED);
-		logger.logTransaction(transactions.get(txnID), time);
+	}
 
-		if (secondaryServer != null)
-			secondaryServer.abort(txnID, transactions.get(txnID).getFileName(), time);
+	@Override
+	public int abort(final long txnID) throws RemoteException, ServerBusyException {
+		AdmissionController.Ticket ticket = admit(AdmissionController.COMMIT);
+		try {
+			// check if the transaction id is correct
+			if (!transactions.containsKey(txnID)) {
+				return INVALID_TRANSACTION_ID;
+			}
 
-		return ACK;
+			// check if the transaction has been already committed
+			if (transactions.get(txnID).getState() == Transaction.COMMITED) {
+				// aborting commited transaction is invalid operation
+				return INVALID_OPERATION;
+			}
+
+			// check if the transaction has been already aborted
+			if (transactions.get(txnID).getState() == Transaction.ABORTED) {
+				return ACK;
+			}
+
+			replicaFanout.invoke(replicaservers, new ReplicaCall<Integer, RemoteException>() {
+				@Override
+				public Integer call(ReplicaServerInterface server) throws RemoteException {
+					return server.abort(txnID);
+				}
+			}, writeQuorum);
+			
+			// update transaction state and log it
+			long time = System.currentTimeMillis();
+			transactions.get(txnID).setState(Transaction.ABORTED);
+			logger.logTransaction(transactions.get(txnID), time, true);
+
+			if (replication != null)
+				replication.publish(ReplicationEvent.abort(txnID, transactions.get(txnID).getFileName(), time));
+
+			return ACK;
+		} finally {
+			release(ticket);
+		}
 	}
 
 	@Override
@@ -267,19 +917,32 @@ public class MainServer implements ServerInterface, HeartbeatsResponder {
 
 			// add this new client to the list of authenticated clients
 			this.clients.put(auth_token, client);
+			persistClients();
 
-			if (secondaryServer != null)
-				secondaryServer.registerClient(client, auth_token);
+			if (replication != null)
+				replication.publish(ReplicationEvent.registerClient(client, auth_token));
 
 			return true;
 		} else {
-			if (clients.containsKey(auth_token))
+			if (clients.containsKey(auth_token)) {
 				return true;
-			else
+			} else
 				return false;
 		}
 	}
 
+	/**
+	 * writes a checkpoint after the clients table has changed, registrations
+	 * are not logged so only the checkpoint recovers them
+	 * */
+	private void persistClients() throws RemoteException {
+		try {
+			checkpointer.checkpoint();
+		} catch (IOException e) {
+			throw new RemoteException("unable to persist the clients table", e);
+		}
+	}
+
 	@Override
 	public boolean unregisterClient(ClientInterface client)
 			throws RemoteException {
@@ -292,9 +955,14 @@ public class MainServer implements ServerInterface, HeartbeatsResponder {
 			if (clients.containsKey(auth_token)) {
 				// safely remove this client
 				clients.remove(auth_token);
+				persistClients();
+				closeSession(auth_token);
+				AdmissionController controller = admission;
+				if (controller != null)
+					controller.forget(auth_token);
 
-				if (secondaryServer != null)
-					secondaryServer.unregisterClient(client, auth_token);
+				if (replication != null)
+					replication.publish(ReplicationEvent.unregisterClient(client, auth_token));
 
 				return true;
 			} else {
@@ -304,12 +972,76 @@ public class MainServer implements ServerInterface, HeartbeatsResponder {
 		}
 	}
 
+	@Override
+	public ServerInterface openSession(ClientInterface client) throws RemoteException {
+		String auth_token = client.getAuthenticationToken();
+		if (auth_token == null || !clients.containsKey(auth_token))
+			return null;
+
+		synchronized (sessions) {
+			ClientSession session = sessions.get(auth_token);
+			if (session == null) {
+				session = new ClientSession(auth_token);
+				session.proxy = (ServerInterface) Proxy.newProxyInstance(ServerInterface.class.getClassLoader(),
+						new Class<?>[] { ServerInterface.class, Unreferenced.class }, session);
+				session.stub = (ServerInterface) UnicastRemoteObject.exportObject(session.proxy, port);
+				sessions.put(auth_token, session);
+			}
+			return session.stub;
+		}
+	}
+
+	private void closeSession(String auth_token) {
+		ClientSession session;
+		synchronized (sessions) {
+			session = sessions.remove(auth_token);
+		}
+
+		if (session != null)
+			session.unexport();
+	}
+
 	@Override
 	public boolean isAlive() throws RemoteException {
 		return true;
 	}
 
 	public void init(int port) throws java.rmi.AlreadyBoundException, IOException {
+		// read ReplicaServer configuration file
+		List<ReplicaLocation> replicas = new ArrayList<ReplicaLocation>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File("ReplicaServers"))));
+		try {
+			String line = null;
+			
+			in.readLine(); // skip first line, it is a comment for specifying the format
+			while ((line = in.readLine()) != null) {
+				replicas.add(new ReplicaServerInfo(line).toLocation());
+			}
+		} finally {
+			in.close();
+		}
+		
+		init(port, replicas);
+	}
+
+	/**
+	 * starts the server with the given replicas instead of the ones listed in
+	 * the ReplicaServers file
+	 * */
+	public void init(int port, List<ReplicaLocation> replicas) throws java.rmi.AlreadyBoundException, IOException {
+		for (ReplicaLocation location : replicas)
+			replicaservers.add(new ReplicaServerInfo(location));
+		
+		replicaLocations = new ReplicaLocation[replicaservers.size()];
+		for (int i = 0; i < replicaLocations.length; i++)
+			replicaLocations[i] = replicaservers.get(i).toLocation();
+		
+		// running periodic checkpoints of the server state, registrations
+		// checkpoint as soon as the server is exported
+		checkpointer = new Checkpointer(logger, transactions, clients, checkpointInterval);
+		checkpointer.start();
+
+		this.port = port;
 		Object mainServerExportedObject = UnicastRemoteObject.exportObject(this, port);
 		ServerInterface serverStub = (ServerInterface) mainServerExportedObject;
 		HeartbeatsResponder heartbeatResponderStub = (HeartbeatsResponder) mainServerExportedObject;
@@ -318,73 +1050,169 @@ public class MainServer implements ServerInterface, HeartbeatsResponder {
 		registry.rebind(DFSERVER_UNIQUE_NAME, serverStub);
 		registry.rebind(MAIN_SERVER_HEARTBEAT_NAME, heartbeatResponderStub);
 		
-		// running transaction time out checker thread
-		transactionsTimeoutChecker.start();
-		
-		// read ReplicaServer configuration file
-		InputStreamReader converter = new InputStreamReader(new FileInputStream(new File("ReplicaServers")));
-		BufferedReader in = new BufferedReader(converter);
-		String line = null;
-		
-		in.readLine(); // skip first line, it is a comment for specifying the format
-		while ((line = in.readLine()) != null) {
-			replicaservers.add(new ReplicaServerInfo(line));
+		// running transaction time out checker thread, transactions
+		// recovered or taken over from the secondary server are scheduled first
+		long now = System.currentTimeMillis();
+		for (Transaction tx : transactions.values()) {
+			expiryWheel.schedule(tx.getId(), Math.max(tx.getLastEdited() + idleTimeout, now));
+			txnIds.advancePast(tx.getId());
 		}
+		transactionsTimeoutChecker.start();
 	}
 	
-	private synchronized void grantFileLock(String fileName){
-		System.out.println("trying to grant lock");
-		while(fileLocks.contains(fileName)){
-			try {
-				Thread.sleep(20);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+	/**
+	 * @return task releasing the exclusive lock of the file, run once all the
+	 *         replicas are done with the file. With a write quorum the
+	 *         client is answered before, and the lock keeps the next commit
+	 *         of the file from reaching a lagging replica first.
+	 * */
+	private Runnable exclusiveUnlocker(final String fileName) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				fileLocks.unlockExclusive(fileName);
 			}
+		};
+	}
+
+	private boolean lockFile(String fileName, boolean exclusive) throws RemoteException {
+		try {
+			if (exclusive)
+				return fileLocks.lockExclusive(fileName, lockTimeout);
+			else
+				return fileLocks.lockShared(fileName, lockTimeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("interrupted while waiting for the lock on " + fileName, e);
 		}
-		fileLocks.add(fileName);
-		System.out.println("lock granted!");
 	}
 	
-	private void releaseFileLock(String fileName){
-		fileLocks.remove(fileName);
-		System.out.println("lock released!");
+	/**
+	 * sets how long reads and commits wait for their file lock
+	 * */
+	public void setLockTimeout(long lockTimeout) {
+		this.lockTimeout = lockTimeout;
 	}
 	
+	/**
+	 * checks a transaction whose idle deadline has been reached. Finished
+	 * transactions are dropped, transactions written since they were
+	 * scheduled are scheduled again at their new deadline, and idle ones are
+	 * aborted in the background.
+	 * */
+	private void expire(final long txnID, long now) {
+		Transaction t = transactions.get(txnID);
+		if (t == null)
+			return;
+		
+		// clean aborted and commited transactions from transaction table
+		if (t.getState() == Transaction.COMMITED || t.getState() == Transaction.ABORTED) {
+			transactions.remove(txnID);
+			return;
+		}
+		
+		long deadline = t.getLastEdited() + idleTimeout;
+		if (deadline > now) {
+			expiryWheel.schedule(txnID, deadline);
+			return;
+		}
+		
+		abortExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					MainServer.this.abort(txnID);
+				} catch (RemoteException e) {
+					e.printStackTrace();
+				} catch (ServerBusyException e) {
+					// calls of the server itself are not admitted
+				}
+				MainServer.this.transactions.remove(txnID);
+			}
+		});
+	}
 	
 	private Thread transactionsTimeoutChecker = new Thread(new Runnable() {
 		
 		@Override
 		public void run() {
 			while(true){
-				long now = System.currentTimeMillis();
-				Object[] keys = MainServer.this.transactions.keySet().toArray();
-				for (Object key : keys) {
-					Transaction t = MainServer.this.transactions.get((Long)key);
-					
-					// clean aborted and commited transactions from transaction hash table
-					if(t.getState() == Transaction.COMMITED || t.getState() == Transaction.ABORTED){
-						MainServer.this.transactions.remove(key);
-					}
-					
-					// check transaction time and state
-					if((now - t.getLastEdited()) > idleTimeout){
-						try {
-							MainServer.this.abort((Long)key);
-						} catch (RemoteException e) {
-							e.printStackTrace();
-						}
-						MainServer.this.transactions.remove(key);
-					}
-				}
 				try {
-					Thread.sleep(5000);
+					Thread.sleep(EXPIRY_TICK);
 				} catch (InterruptedException e) {
 					e.printStackTrace();
+					return;
+				}
+				
+				long now = System.currentTimeMillis();
+				TimerWheel.Slot expired = expiryWheel.advance(now);
+				if (expired == null)
+					continue;
+				
+				for (int i = 0; i < expired.size(); i++) {
+					expire(expired.get(i), now);
 				}
 			}
 		}
-	});
+	}, "transactions-expiry");
 	
+	/**
+	 * server exported for one registered client, the calls made through it
+	 * are counted against the quota of the client auth token. The session is
+	 * closed once the RMI runtime finds that no client references it any more,
+	 * i.e. the client is gone without unregistering.
+	 * */
+	private class ClientSession implements InvocationHandler {
+		private String token;
+		private ServerInterface proxy;
+		private ServerInterface stub;
+
+		ClientSession(String token) {
+			this.token = token;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class)
+				return method.invoke(this, args);
+
+			if (method.getDeclaringClass() == Unreferenced.class) {
+				unreferenced();
+				return null;
+			}
+
+			sessionToken.set(token);
+			try {
+				return method.invoke(MainServer.this, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			} finally {
+				sessionToken.remove();
+			}
+		}
+
+		private void unreferenced() {
+			synchronized (sessions) {
+				if (sessions.get(token) != this)
+					return;
+				sessions.remove(token);
+			}
+			unexport();
+
+			AdmissionController controller = admission;
+			if (controller != null)
+				controller.forget(token);
+		}
+
+		void unexport() {
+			try {
+				UnicastRemoteObject.unexportObject(proxy, true);
+			} catch (NoSuchObjectException e) {
+				// already unexported
+			}
+		}
+	}
+
 	class ReplicaServerInfo{
 		String uniqueName;
 		String hostName;
@@ -396,6 +1224,35 @@ public class MainServer implements ServerInterface, HeartbeatsResponder {
 			port = Integer.parseInt(st.nextToken());
 			uniqueName = st.nextToken();
 		}
+
+		public ReplicaServerInfo(ReplicaLocation location){
+			hostName = location.getHostName();
+			port = location.getPort();
+			uniqueName = location.getUniqueName();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ReplicaServerInfo))
+				return false;
+			ReplicaServerInfo other = (ReplicaServerInfo) obj;
+			return port == other.port && hostName.equals(other.hostName)
+					&& uniqueName.equals(other.uniqueName);
+		}
+
+		@Override
+		public int hashCode() {
+			return (hostName.hashCode() * 31 + port) * 31 + uniqueName.hashCode();
+		}
+
+		ReplicaLocation toLocation() {
+			return new ReplicaLocation(hostName, port, uniqueName);
+		}
+
+		@Override
+		public String toString() {
+			return hostName + ":" + port + "/" + uniqueName;
+		}
 	}
 	
 	public static void main(String[] args) throws AlreadyBoundException, NotBoundException,
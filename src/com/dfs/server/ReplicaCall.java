@@ -0,0 +1,17 @@
+package com.dfs.server;
+
+import java.rmi.RemoteException;
+
+import com.ds.interfaces.ReplicaServerInterface;
+
+/**
+ * A single remote call made by the main server on one replica.
+ * 
+ * @param <T>
+ *            result type of the call
+ * @param <E>
+ *            checked exception thrown by the call besides RemoteException
+ * */
+interface ReplicaCall<T, E extends Exception> {
+	T call(ReplicaServerInterface server) throws RemoteException, E;
+}
@@ -0,0 +1,255 @@
+package com.dfs.server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dfs.server.MainServer.ReplicaServerInfo;
+
+/**
+ * Sends the same call to a set of replicas concurrently on a bounded thread
+ * pool and returns as soon as a quorum of them has answered. Replicas that
+ * did not answer yet keep running in the background and their failures are
+ * recorded.
+ * */
+public class ReplicaFanout {
+	public static final int DEFAULT_THREADS = 16;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	private ReplicaStubCache stubs;
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * number of failed calls per replica, including calls that failed after
+	 * the quorum had been reached
+	 * */
+	private ConcurrentHashMap<ReplicaServerInfo, AtomicLong> failures = new ConcurrentHashMap<ReplicaServerInfo, AtomicLong>();
+	private AtomicLong laggardFailures = new AtomicLong();
+
+	public ReplicaFanout(ReplicaStubCache stubs) {
+		this(stubs, DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public ReplicaFanout(ReplicaStubCache stubs, int threads, int queueCapacity) {
+		this.stubs = stubs;
+
+		// when the queue is full the calling thread runs the replica call
+		// itself, which slows down the clients instead of queuing without bound
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+					private AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "replica-fanout-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * runs the call on all the given replicas concurrently and waits until
+	 * quorum of them succeed.
+	 *
+	 * @param replicas
+	 *            replicas to call
+	 * @param call
+	 *            call to run on each replica
+	 * @param quorum
+	 *            number of successful replicas to wait for, values less than 1
+	 *            or greater than the number of replicas mean all replicas, in
+	 *            which case replicas that can not be reached are skipped as
+	 *            long as one of them succeeds
+	 * @return results of the replicas that answered before the quorum was
+	 *         reached, at least one
+	 * @throws RemoteException
+	 *             ,E the failure making the quorum unreachable, failures
+	 *             returned by the replicas are preferred to communication
+	 *             failures
+	 * */
+	public <T, E extends Exception> List<T> invoke(List<ReplicaServerInfo> replicas,
+			ReplicaCall<T, E> call, int quorum) throws RemoteException, E {
+		return invoke(replicas, call, quorum, null);
+	}
+
+	/**
+	 * same as invoke(replicas, call, quorum), and runs onCompletion once all
+	 * the replicas have answered or failed, which may be after this returns
+	 * */
+	public <T, E extends Exception> List<T> invoke(List<ReplicaServerInfo> replicas,
+			ReplicaCall<T, E> call, int quorum, Runnable onCompletion) throws RemoteException, E {
+		boolean all = quorum < 1 || quorum >= replicas.size();
+		if (all)
+			quorum = Math.max(1, replicas.size());
+
+		QuorumCall<T, E> quorumCall = new QuorumCall<T, E>(call, replicas.size(), quorum, all, onCompletion);
+		if (replicas.isEmpty())
+			quorumCall.complete();
+		for (ReplicaServerInfo info : replicas) {
+			executor.execute(quorumCall.task(info));
+		}
+
+		return quorumCall.await();
+	}
+
+	private void recordFailure(ReplicaServerInfo info, Exception e, boolean laggard) {
+		AtomicLong counter = failures.get(info);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = failures.putIfAbsent(info, created);
+			if (counter == null)
+				counter = created;
+		}
+		counter.incrementAndGet();
+
+		if (laggard) {
+			laggardFailures.incrementAndGet();
+			System.err.println("replica " + info + " failed after quorum: " + e);
+		}
+	}
+
+	/**
+	 * @return number of failed calls on the replica
+	 * */
+	public long getFailures(ReplicaServerInfo info) {
+		AtomicLong counter = failures.get(info);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/**
+	 * @return number of replica calls that failed after their quorum had been
+	 *         reached and the client was answered
+	 * */
+	public long getLaggardFailures() {
+		return laggardFailures.get();
+	}
+
+	/**
+	 * @return number of replica calls waiting for a free thread
+	 * */
+	public int getQueuedCalls() {
+		return executor.getQueue().size();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * state of one fanned out call, shared by the tasks sent to each replica
+	 * and the thread waiting for the quorum.
+	 * */
+	private class QuorumCall<T, E extends Exception> {
+		ReplicaCall<T, E> call;
+		int pending;
+		int quorum;
+		List<T> results = new ArrayList<T>();
+		Exception failure;
+
+		/**
+		 * whether all the replicas are waited for, then unreachable replicas
+		 * are skipped instead of failing the call
+		 * */
+		boolean all;
+		Runnable onCompletion;
+
+		QuorumCall(ReplicaCall<T, E> call, int replicas, int quorum, boolean all, Runnable onCompletion) {
+			this.call = call;
+			this.pending = replicas;
+			this.quorum = quorum;
+			this.all = all;
+			this.onCompletion = onCompletion;
+		}
+
+		Runnable task(final ReplicaServerInfo info) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					boolean last;
+					try {
+						T result = stubs.invoke(info, call);
+						if (result == null)
+							last = onUnreachable(info);
+						else
+							last = onSuccess(result);
+					} catch (Exception e) {
+						last = onFailure(info, e);
+					}
+					if (last)
+						complete();
+				}
+			};
+		}
+
+		/**
+		 * @return true if this was the last replica to answer
+		 * */
+		synchronized boolean onSuccess(T result) {
+			pending--;
+			if (results.size() < quorum)
+				results.add(result);
+			notifyAll();
+			return pending == 0;
+		}
+
+		synchronized boolean onUnreachable(ReplicaServerInfo info) {
+			// skipping the replica must leave at least one to succeed
+			if (!all || quorum == 1)
+				return onFailure(info, new RemoteException("replica " + info + " is unreachable"));
+
+			pending--;
+			quorum--;
+			recordFailure(info, new RemoteException("replica " + info + " is unreachable"), false);
+			notifyAll();
+			return pending == 0;
+		}
+
+		synchronized boolean onFailure(ReplicaServerInfo info, Exception e) {
+			pending--;
+			recordFailure(info, e, results.size() >= quorum);
+
+			// the failures returned by the replicas, like missing messages,
+			// tell the client what to do and are kept over lost connections
+			if (failure == null || (failure instanceof RemoteException && !(e instanceof RemoteException)))
+				failure = e;
+			notifyAll();
+			return pending == 0;
+		}
+
+		void complete() {
+			if (onCompletion != null)
+				onCompletion.run();
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized List<T> await() throws RemoteException, E {
+			while (results.size() < quorum && results.size() + pending >= quorum) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RemoteException("interrupted while waiting for replicas", e);
+				}
+			}
+
+			if (results.size() >= quorum)
+				return new ArrayList<T>(results);
+
+			if (failure == null)
+				throw new RemoteException("no replica to call");
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof RemoteException)
+				throw (RemoteException) failure;
+			throw (E) failure;
+		}
+	}
+}
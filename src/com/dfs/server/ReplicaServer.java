@@ -4,8 +4,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.rmi.AlreadyBoundException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -13,9 +15,13 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dfs.common.ReplicaStubs;
 import com.ds.interfaces.ClientInterface;
 import com.ds.interfaces.FileContents;
 import com.ds.interfaces.MessageNotFoundException;
+import com.ds.interfaces.ReplicaLocation;
 import com.ds.interfaces.ReplicaServerInterface;
 import com.ds.interfaces.ServerInterface;
 
@@ -24,35 +30,138 @@ public class ReplicaServer implements ReplicaServerInterface {
 	String directory_path = System.getProperty("user.home") + "/dfs/";
 	String cache_path = directory_path + "cache/";
 
+	/**
+	 * committed data is left to the operating system to be written to disk
+	 * */
+	public static final int DURABILITY_NONE = 0;
+	/**
+	 * every commit forces its file to disk before it is acknowledged
+	 * */
+	public static final int DURABILITY_COMMIT = 1;
+	/**
+	 * concurrent commits are forced to disk together by one GroupSyncer
+	 * */
+	public static final int DURABILITY_GROUP = 2;
+
+	private volatile int durability = DURABILITY_NONE;
+	private long groupSyncWindowMicros = GroupSyncer.DEFAULT_WINDOW_MICROS;
+	private GroupSyncer groupSyncer;
+
+	// commit statistics
+	private AtomicLong commits = new AtomicLong();
+	private AtomicLong committedMessages = new AtomicLong();
+	private AtomicLong committedBytes = new AtomicLong();
+	private AtomicLong commitsNanos = new AtomicLong();
+
+	/**
+	 * messages of the running transactions
+	 * */
+	private StagingArea staging;
+
+	/**
+	 * replicas this replica forwards chained writes to
+	 * */
+	private ReplicaStubs chainStubs = new ReplicaStubs();
+
 	public ReplicaServer(String host, String directoryPath)
 			throws RemoteException, NotBoundException {
+		this(host, directoryPath, StagingArea.DEFAULT_MEMORY_BUDGET);
+	}
+
+	/**
+	 * @param stagingMemoryBudget
+	 *            bytes of memory used to stage transactions messages before
+	 *            spilling them to the cache directory
+	 * */
+	public ReplicaServer(String host, String directoryPath, long stagingMemoryBudget)
+			throws RemoteException, NotBoundException {
 		if (directoryPath != null) {
-			this.directory_path += directoryPath+"/";
+			// relative directories are kept under the default one
+			if (new File(directoryPath).isAbsolute())
+				this.directory_path = directoryPath + "/";
+			else
+				this.directory_path += directoryPath+"/";
 			this.cache_path = directory_path + "cache/";
 		}
 		
 		// creating working directories
 		new File(directory_path).mkdir();
 		new File(cache_path).mkdir();
+
+		this.staging = new StagingArea(new File(cache_path), stagingMemoryBudget, StagingArea.DEFAULT_PAGE_SIZE);
 	}
 
 	@Override
 	public FileContents read(String fileName) throws FileNotFoundException,
 			IOException, RemoteException {
+		FileChannel channel = new FileInputStream(new File(directory_path + fileName)).getChannel();
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(fileName + " is too large to be read at once, use ranged reads");
+
+			return new FileContents(readFully(channel, 0, (int) size), size);
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	public FileContents read(String fileName, long offset, int length)
+			throws FileNotFoundException, IOException, RemoteException {
+		if (offset < 0 || length < 0)
+			throw new IOException("invalid range " + offset + "+" + length + " of " + fileName);
+
+		FileChannel channel = new FileInputStream(new File(directory_path + fileName)).getChannel();
+		try {
+			long size = channel.size();
+			int contentlength = (int) Math.max(0, Math.min(length, size - offset));
+
+			return new FileContents(readFully(channel, offset, contentlength), size);
+		} finally {
+			channel.close();
+		}
+	}
 
-		// Note: only file of size less that BUFFER_SIZE can be handled
-		// correctly.
-		FileInputStream instream = new FileInputStream(new File(directory_path + fileName));
-		byte[] buffer = new byte[FileContents.BUFFER_SIZE];
-		int contentlength = instream.read(buffer);
-		instream.close();
+	@Override
+	public FileContents readIfModified(String fileName, long version)
+			throws FileNotFoundException, IOException, RemoteException {
+		FileChannel channel = new FileInputStream(new File(directory_path + fileName)).getChannel();
+		try {
+			long size = channel.size();
+			if (size <= version)
+				return new FileContents(null, size);
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(fileName + " is too large to be read at once, use ranged reads");
+
+			return new FileContents(readFully(channel, 0, (int) size), size);
+		} finally {
+			channel.close();
+		}
+	}
 
-		// copying the buffer in smaller content byte array to be sent
-		byte[] content = new byte[contentlength];
-		System.arraycopy(buffer, 0, content, 0, contentlength);
+	/**
+	 * reads exactly length bytes starting at offset from the channel directly
+	 * into the array that will be sent.
+	 * */
+	private byte[] readFully(FileChannel channel, long offset, int length) throws IOException {
+		byte[] content = new byte[length];
+		ByteBuffer buffer = ByteBuffer.wrap(content);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) == -1)
+				throw new IOException("file has been truncated while reading");
+		}
+		return content;
+	}
 
-		// return FileContent instance
-		return new FileContents(content);
+	@Override
+	public ReplicaLocation[] lookup(String fileName) throws RemoteException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public ReplicaLocation[] writeChain(long txnID) throws RemoteException {
+		throw new UnsupportedOperationException();
 	}
 
 	@Override
@@ -63,36 +172,71 @@ public class ReplicaServer implements ReplicaServerInterface {
 	@Override
 	public int write(long txnID, long msgSeqNum, byte[] data)
 			throws RemoteException, IOException {
-		// build cache file name
-		File cacheFile = new File(cache_path + txnID + "_" + msgSeqNum);
-		cacheFile.createNewFile();
-		FileOutputStream outstream = new FileOutputStream(cacheFile);
+		if (!staging.stage(txnID, msgSeqNum, data))
+			return INVALID_OPERATION;
 
-		// safely write data and close opened stream
-		outstream.write(data);
-		outstream.flush();
-		outstream.close();
+		return ACK;
+	}
+
+	@Override
+	public int writeBatch(long txnID, long[] msgSeqNums, byte[][] data)
+			throws RemoteException, IOException {
+		for (int i = 0; i < msgSeqNums.length; i++) {
+			if (!staging.stage(txnID, msgSeqNums[i], data[i]))
+				return INVALID_OPERATION;
+		}
 
 		return ACK;
 	}
 
+	@Override
+	public int append(long txnID, String fileName, byte[] data) throws RemoteException, IOException {
+		if (!staging.stage(txnID, 1, data))
+			return INVALID_OPERATION;
+
+		try {
+			return commit(txnID, 1, fileName);
+		} catch (MessageNotFoundException e) {
+			// the message has just been staged
+			throw new RemoteException("message of transaction " + txnID + " has been lost", e);
+		}
+	}
+
+	@Override
+	public int append(String fileName, byte[] data) throws RemoteException, IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int chainWrite(long txnID, long msgSeqNum, byte[] data, ReplicaLocation[] chain)
+			throws RemoteException, IOException {
+		if (!staging.stage(txnID, msgSeqNum, data))
+			return INVALID_OPERATION;
+
+		if (chain == null || chain.length == 0)
+			return ACK;
+
+		ReplicaServerInterface next = chainStubs.get(chain[0]);
+		if (next == null)
+			throw new RemoteException("replica " + chain[0] + " is unreachable");
+
+		try {
+			return next.chainWrite(txnID, msgSeqNum, data, Arrays.copyOfRange(chain, 1, chain.length));
+		} catch (RemoteException e) {
+			chainStubs.evict(chain[0]);
+			throw e;
+		}
+	}
+
 	@Override
 	public int commit(final long txnID, long numOfMsgs, String filename)
 			throws MessageNotFoundException, RemoteException {
 
-		// get all cached files by this transaction
-		File[] cachedFiles = new File(cache_path).listFiles(new CacheFilesFilter(txnID));
+		// get ids of all staged messages of this transaction
+		long[] msgsIDs = staging.getStagedMessages(txnID);
 
 		// check if there are unreceived messages and report them to the client
-		if (cachedFiles.length < numOfMsgs) {
-			long[] msgsIDs = new long[cachedFiles.length];
-
-			// convert msgsID to array of Long
-			for (int i = 0; i < msgsIDs.length; i++) {
-				String fname = cachedFiles[(int) i].getName();
-				msgsIDs[i] = Long.parseLong(fname.substring(fname.indexOf('_') + 1));
-			}
-
+		if (msgsIDs.length < numOfMsgs) {
 			// prepare exception to be thrown
 			MessageNotFoundException exception = new MessageNotFoundException();
 			exception.setMsgNum(findLostMessagesIDs(msgsIDs, numOfMsgs));
@@ -100,46 +244,142 @@ public class ReplicaServer implements ReplicaServerInterface {
 			throw exception;
 		}
 
+		long start = System.nanoTime();
+		long bytes = 0;
 		try {
 			// create new file if it is not exist yet.
 			File fout = new File(directory_path + filename);
-			fout.createNewFile();
+			boolean created = fout.createNewFile();
+
+			// the target file is opened once and all staged messages are
+			// written into it with gathering writes from memory or kernel
+			// transfers from the spill segment
+			FileChannel target = new FileOutputStream(fout, true).getChannel();
+			long size = target.size();
+			try {
+				bytes = staging.transferTo(txnID, numOfMsgs, target);
+				sync(fout, target, created);
+			} catch (IOException e) {
+				// the data may have been written in part or in full, it is
+				// cut off so a retried commit does not append it twice
+				try {
+					target.truncate(size);
+				} catch (IOException truncateFailure) {
+					e.addSuppressed(truncateFailure);
+				}
+				throw e;
+			} finally {
+				target.close();
+			}
+		} catch (IOException e) {
+			// the transaction stays staged, so the commit can be retried
+			throw new RemoteException("unable to commit transaction " + txnID, e);
+		}
 
-			FileOutputStream outsream = new FileOutputStream(fout, true);
+		long duration = System.nanoTime() - start;
+		committedBytes.addAndGet(bytes);
+		commitsNanos.addAndGet(duration);
+		commits.incrementAndGet();
+		committedMessages.addAndGet(numOfMsgs);
 
-			byte[] buffer = new byte[FileContents.BUFFER_SIZE];
-			for (int i = 1; i <= numOfMsgs; i++) {
-				FileInputStream instream = new FileInputStream(new File(cache_path + txnID + '_' + i));
+		staging.discard(txnID);
 
-				int len = 0;
-				while ((len = instream.read(buffer)) != -1) {
-					outsream.write(buffer, 0, len);
-				}
+		return ACK;
+	}
 
-				instream.close();
+	/**
+	 * forces the committed data to disk according to the durability mode
+	 * 
+	 * @param created
+	 *            true if the file has been created by this commit, then its
+	 *            directory entry is forced as well
+	 * */
+	private void sync(File file, FileChannel channel, boolean created) throws IOException {
+		if (durability == DURABILITY_NONE)
+			return;
+
+		if (durability == DURABILITY_GROUP)
+			groupSyncer.sync(file.getPath(), channel);
+		else
+			channel.force(false);
+
+		if (created) {
+			FileChannel directory = FileChannel.open(file.getParentFile().toPath(), StandardOpenOption.READ);
+			try {
+				directory.force(true);
+			} catch (IOException e) {
+				// directories can not be forced on all platforms
+			} finally {
+				directory.close();
 			}
+		}
+	}
 
-			// flush and close file output stream
-			outsream.flush();
-			outsream.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-			// TODO: unhandeled yet
+	/**
+	 * sets how committed data is forced to disk before the commit is
+	 * acknowledged, one of DURABILITY_NONE, DURABILITY_COMMIT or
+	 * DURABILITY_GROUP.
+	 * */
+	public synchronized void setDurability(int durability) {
+		if (durability == DURABILITY_GROUP && groupSyncer == null) {
+			groupSyncer = new GroupSyncer(groupSyncWindowMicros);
+			groupSyncer.start();
 		}
+		this.durability = durability;
+	}
 
-		clearCachedFiles(txnID);
+	public int getDurability() {
+		return durability;
+	}
 
-		return ACK;
+	/**
+	 * sets how long the group syncer waits for more commits before forcing
+	 * them, takes effect before the durability is set to DURABILITY_GROUP
+	 * */
+	public void setGroupSyncWindow(long micros) {
+		this.groupSyncWindowMicros = micros;
 	}
 
 	/**
-	 * clear cached files for this transaction
+	 * @return the group syncer, null unless the durability is DURABILITY_GROUP
 	 * */
-	private void clearCachedFiles(long txnID) {
-		File[] cachedFiles = new File(cache_path).listFiles(new CacheFilesFilter(txnID));
-		for (File file : cachedFiles) {
-			file.delete();
-		}
+	public GroupSyncer getGroupSyncer() {
+		return groupSyncer;
+	}
+
+	/**
+	 * @return the staging area of the running transactions messages
+	 * */
+	public StagingArea getStaging() {
+		return staging;
+	}
+
+	/**
+	 * @return total number of bytes appended to files by commits
+	 * */
+	public long getCommittedBytes() {
+		return committedBytes.get();
+	}
+
+	/**
+	 * @return number of commits done by this replica
+	 * */
+	public long getCommits() {
+		return commits.get();
+	}
+
+	/**
+	 * @return total number of messages written to files by commits
+	 * */
+	public long getCommittedMessages() {
+		return committedMessages.get();
+	}
+
+	/**
+	 * @return total time spent assembling committed files in nanoseconds
+	 * */
+	public long getCommitsNanos() {
+		return commitsNanos.get();
 	}
 
 	/**
@@ -152,13 +392,20 @@ public class ReplicaServer implements ReplicaServerInterface {
 	 * 
 	 * @return array of all missing messages ids
 	 * */
-	private int[] findLostMessagesIDs(long[] msgsIDs, long numOfMsgs) {
+	static int[] findLostMessagesIDs(long[] msgsIDs, long numOfMsgs) {
 		Arrays.sort(msgsIDs);
 
 		int missedMessagesNumner = (int) numOfMsgs - msgsIDs.length;
 		int[] missedMessages = new int[missedMessagesNumner];
 		int mIndex = 0;
 		
+		if(msgsIDs.length == 0){
+			for (long j = 1; j <= numOfMsgs; j++) {
+				missedMessages[mIndex++] = (int) j;
+			}
+			return missedMessages;
+		}
+		
 		if(msgsIDs[0] != 1){
 			for (long j = 1; j < msgsIDs[0]; j++) {
 				missedMessages[mIndex++] = (int) j;
@@ -182,26 +429,10 @@ public class ReplicaServer implements ReplicaServerInterface {
 		return missedMessages;
 	}
 
-	/**
-	 * FilenameFilter used to filter cached files for specific transaction
-	 * */
-	class CacheFilesFilter implements FilenameFilter {
-		long txnID = 0;
-
-		public boolean accept(File dir, String name) {
-			name = name.substring(0, name.indexOf('_'));
-			return name.equals("" + txnID);
-		}
-
-		CacheFilesFilter(long txnID) {
-			this.txnID = txnID;
-		}
-	}
-
 	@Override
 	public int abort(long txnID) throws RemoteException {
 		// clear all changes made by this transaction
-		clearCachedFiles(txnID);
+		staging.discard(txnID);
 
 		return ACK;
 	}
@@ -219,6 +450,11 @@ public class ReplicaServer implements ReplicaServerInterface {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public ServerInterface openSession(ClientInterface client) throws RemoteException {
+		throw new UnsupportedOperationException();
+	}
+
 
 	public void init(String name, int port) throws RemoteException,
 			java.rmi.AlreadyBoundException {
@@ -0,0 +1,181 @@
+package com.dfs.server;
+
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dfs.server.MainServer.ReplicaServerInfo;
+import com.ds.interfaces.ReplicaServerInterface;
+
+/**
+ * Cache of replica RMI stubs keyed by ReplicaServerInfo, so the registry is
+ * only contacted the first time a replica is used or after a call on its
+ * cached stub has failed.
+ * */
+public class ReplicaStubCache {
+
+	/**
+	 * cached stubs of the replicas that are believed to be alive
+	 * */
+	private ConcurrentHashMap<ReplicaServerInfo, ReplicaServerInterface> stubs = new ConcurrentHashMap<ReplicaServerInfo, ReplicaServerInterface>();
+
+	/**
+	 * number of consecutive failed lookups or calls per replica
+	 * */
+	private ConcurrentHashMap<ReplicaServerInfo, AtomicLong> failures = new ConcurrentHashMap<ReplicaServerInfo, AtomicLong>();
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * returns the cached stub of the replica, looking it up in the replica
+	 * registry on a cache miss.
+	 *
+	 * @return the replica stub or null if the replica can not be reached
+	 * */
+	public ReplicaServerInterface get(ReplicaServerInfo info) {
+		ReplicaServerInterface stub = stubs.get(info);
+		if (stub != null) {
+			hits.incrementAndGet();
+			return stub;
+		}
+
+		misses.incrementAndGet();
+		stub = lookup(info);
+		if (stub != null) {
+			ReplicaServerInterface existing = stubs.putIfAbsent(info, stub);
+			if (existing != null)
+				stub = existing;
+		}
+		return stub;
+	}
+
+	/**
+	 * evicts the cached stub of the replica and looks it up again, this is
+	 * called when a call on the cached stub failed with RemoteException.
+	 *
+	 * @return the fresh stub or null if the replica can not be reached
+	 * */
+	public ReplicaServerInterface refresh(ReplicaServerInfo info) {
+		evict(info);
+		return get(info);
+	}
+
+	/**
+	 * drops the cached stub of the replica, the next get will go to the
+	 * registry again.
+	 * */
+	public void evict(ReplicaServerInfo info) {
+		if (stubs.remove(info) != null)
+			evictions.incrementAndGet();
+		failureCounter(info).incrementAndGet();
+	}
+
+	/**
+	 * marks a successful call on the replica
+	 * */
+	public void markAlive(ReplicaServerInfo info) {
+		AtomicLong counter = failures.get(info);
+		if (counter != null)
+			counter.set(0);
+	}
+
+	/**
+	 * runs the call on the cached stub of the replica. If the call fails with
+	 * RemoteException the stub is evicted, and if the failure shows that the
+	 * call never reached the replica (replica restarted or stub is stale) the
+	 * call is retried once on a freshly looked up stub.
+	 * 
+	 * @return the call result or null if the replica can not be reached
+	 * */
+	public <T, E extends Exception> T invoke(ReplicaServerInfo info, ReplicaCall<T, E> call)
+			throws RemoteException, E {
+		ReplicaServerInterface server = get(info);
+		if (server == null)
+			return null;
+
+		try {
+			T result = call.call(server);
+			markAlive(info);
+			return result;
+		} catch (RemoteException e) {
+			if (!(e instanceof NoSuchObjectException || e instanceof ConnectException)) {
+				evict(info);
+				throw e;
+			}
+
+			server = refresh(info);
+			if (server == null)
+				throw e;
+
+			T result = call.call(server);
+			markAlive(info);
+			return result;
+		}
+	}
+
+	private ReplicaServerInterface lookup(ReplicaServerInfo info) {
+		try {
+			Registry registry = LocateRegistry.getRegistry(info.hostName, info.port);
+			ReplicaServerInterface stub = (ReplicaServerInterface) registry.lookup(info.uniqueName);
+			markAlive(info);
+			return stub;
+		} catch (RemoteException e) {
+			System.err.println("unable to reach replica " + info);
+		} catch (NotBoundException e) {
+			System.err.println("replica " + info + " is not bound");
+		}
+		failureCounter(info).incrementAndGet();
+		return null;
+	}
+
+	private AtomicLong failureCounter(ReplicaServerInfo info) {
+		AtomicLong counter = failures.get(info);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = failures.putIfAbsent(info, created);
+			if (counter == null)
+				counter = created;
+		}
+		return counter;
+	}
+
+	/**
+	 * @return true if the replica stub is currently cached, i.e. the last
+	 *         call or lookup on it succeeded
+	 * */
+	public boolean isHealthy(ReplicaServerInfo info) {
+		return stubs.containsKey(info);
+	}
+
+	/**
+	 * @return number of consecutive failures of the replica
+	 * */
+	public long getFailures(ReplicaServerInfo info) {
+		AtomicLong counter = failures.get(info);
+		return counter == null ? 0 : counter.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public String toString() {
+		return String.format("hits=%d misses=%d evictions=%d cached=%d",
+				hits.get(), misses.get(), evictions.get(), stubs.size());
+	}
+}
@@ -0,0 +1,264 @@
+package com.dfs.server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.ds.interfaces.ReplicationEvent;
+import com.ds.interfaces.ResyncRequiredException;
+import com.ds.interfaces.SecondaryServerInterface;
+
+/**
+ * Ships the main server events to the secondary server asynchronously. Events
+ * are numbered and queued by the server threads, and a single shipper thread
+ * sends them in batches and drops them once the secondary has acknowledged
+ * them. Unacknowledged events are sent again after a failure.
+ *
+ * The number of unacknowledged events is bounded by the maximum lag: when it
+ * is reached the server threads wait up to the publish timeout for the
+ * secondary to catch up. An event that still does not fit is dropped and
+ * counted, together with the whole backlog, so a dead secondary does not stall
+ * the main server. Dropped events still take their sequence number and the
+ * stream sends a snapshot of the server state in their place, the events
+ * published until the snapshot is taken are covered by it and not queued.
+ * The stream also sends a snapshot when the secondary finds a gap in the
+ * events it receives, e.g. after it has been restarted.
+ *
+ * Sequence numbers start again with each stream, the events carry the epoch
+ * of their stream so the secondary can tell a new main server apart.
+ * */
+public class ReplicationStream extends Thread {
+	public static final int DEFAULT_MAX_LAG = 10000;
+	public static final int DEFAULT_BATCH_SIZE = 512;
+	public static final long DEFAULT_PUBLISH_TIMEOUT = 1000;
+
+	/**
+	 * time to wait before shipping again after a failure
+	 * */
+	private static final long RETRY_DELAY = 500;
+
+	private SecondaryServerInterface secondaryServer;
+	private SnapshotSource snapshotSource;
+	private int maxLag;
+	private int batchSize;
+	private long publishTimeout = DEFAULT_PUBLISH_TIMEOUT;
+
+	/**
+	 * identifies the events of this stream, the time it has been created at
+	 * */
+	private final long epoch = System.currentTimeMillis();
+
+	/**
+	 * published events not acknowledged yet, in sequence order
+	 * */
+	private LinkedList<ReplicationEvent> unacked = new LinkedList<ReplicationEvent>();
+	private long lastSeq = 0;
+	private long ackedSeq = 0;
+	private long failures = 0;
+	private long dropped = 0;
+	private long resyncs = 0;
+
+	/**
+	 * set when the secondary has to receive a snapshot, until the shipper
+	 * thread takes it
+	 * */
+	private boolean resync = false;
+
+	/**
+	 * sequence number of the last snapshot taken, the events it covers do not
+	 * count in the lag publish waits for
+	 * */
+	private long snapshotSeq = 0;
+
+	/**
+	 * set once an event has been dropped, until the secondary acknowledges
+	 * events again
+	 * */
+	private boolean overflowing = false;
+
+	public ReplicationStream(SecondaryServerInterface secondaryServer, SnapshotSource snapshotSource) {
+		this(secondaryServer, snapshotSource, DEFAULT_MAX_LAG, DEFAULT_BATCH_SIZE);
+	}
+
+	public ReplicationStream(SecondaryServerInterface secondaryServer, SnapshotSource snapshotSource,
+			int maxLag, int batchSize) {
+		super("replication-stream");
+		setDaemon(true);
+
+		this.secondaryServer = secondaryServer;
+		this.snapshotSource = snapshotSource;
+		this.maxLag = maxLag;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param maxLag
+	 *            number of unacknowledged events at which publish starts
+	 *            waiting for the secondary
+	 * */
+	public synchronized void setMaxLag(int maxLag) {
+		this.maxLag = maxLag;
+		notifyAll();
+	}
+
+	/**
+	 * @param publishTimeout
+	 *            milliseconds publish waits for the secondary when it is
+	 *            lagging by maxLag events before dropping the event
+	 * */
+	public synchronized void setPublishTimeout(long publishTimeout) {
+		this.publishTimeout = publishTimeout;
+	}
+
+	/**
+	 * numbers the event and queues it to be shipped. If the secondary is
+	 * lagging by maxLag events it waits for it first, and drops the event if
+	 * the secondary does not catch up in time.
+	 *
+	 * @return false if the event has been dropped
+	 * */
+	public synchronized boolean publish(ReplicationEvent event) throws RemoteException {
+		long deadline = System.currentTimeMillis() + publishTimeout;
+		while (!resync && lastSeq - Math.max(ackedSeq, snapshotSeq) >= maxLag) {
+			long timeout = deadline - System.currentTimeMillis();
+			if (overflowing || timeout <= 0) {
+				overflowing = true;
+				dropped++;
+				++lastSeq;
+				requestResync();
+				return false;
+			}
+
+			try {
+				wait(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("interrupted while waiting for the secondary server", e);
+			}
+		}
+
+		event.setEpoch(epoch);
+		event.setSeq(++lastSeq);
+
+		// the next snapshot covers the event
+		if (resync)
+			return true;
+
+		unacked.add(event);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * drops the backlog, the shipper thread sends a snapshot in its place
+	 * */
+	private synchronized void requestResync() {
+		if (resync)
+			return;
+
+		resync = true;
+		resyncs++;
+		unacked.clear();
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			List<ReplicationEvent> batch;
+			synchronized (this) {
+				while (unacked.isEmpty() && !resync) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				if (resync) {
+					// publishers wait for this lock, so the snapshot reflects
+					// every event numbered so far and the following ones are
+					// queued behind it
+					ReplicationEvent snapshot = snapshotSource.snapshot();
+					snapshot.setEpoch(epoch);
+					snapshot.setSeq(lastSeq);
+					snapshotSeq = lastSeq;
+					unacked.clear();
+					unacked.add(snapshot);
+					resync = false;
+				}
+
+				batch = new ArrayList<ReplicationEvent>(Math.min(batchSize, unacked.size()));
+				for (ReplicationEvent event : unacked) {
+					if (batch.size() == batchSize)
+						break;
+					batch.add(event);
+				}
+			}
+
+			try {
+				acknowledge(secondaryServer.replicate(batch));
+			} catch (ResyncRequiredException e) {
+				System.err.println("secondary server needs a snapshot: " + e.getMessage());
+				requestResync();
+			} catch (RemoteException e) {
+				synchronized (this) {
+					failures++;
+				}
+				System.err.println("unable to ship events to the secondary server: " + e.getMessage());
+
+				try {
+					sleep(RETRY_DELAY);
+				} catch (InterruptedException e1) {
+					return;
+				}
+			}
+		}
+	}
+
+	private synchronized void acknowledge(long seq) {
+		while (!unacked.isEmpty() && unacked.getFirst().getSeq() <= seq)
+			unacked.removeFirst();
+
+		ackedSeq = Math.max(ackedSeq, seq);
+		if (lastSeq - ackedSeq < maxLag)
+			overflowing = false;
+		notifyAll();
+	}
+
+	/**
+	 * @return number of events the secondary server has not acknowledged yet
+	 * */
+	public synchronized long getLag() {
+		return lastSeq - ackedSeq;
+	}
+
+	/**
+	 * @return sequence number of the last event acknowledged by the secondary
+	 * */
+	public synchronized long getAckedSeq() {
+		return ackedSeq;
+	}
+
+	/**
+	 * @return number of events dropped because the secondary was lagging
+	 * */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return number of snapshots requested to resynchronize the secondary
+	 * */
+	public synchronized long getResyncs() {
+		return resyncs;
+	}
+
+	/**
+	 * @return number of failed shipping attempts
+	 * */
+	public synchronized long getFailures() {
+		return failures;
+	}
+}
@@ -0,0 +1,15 @@
+package com.dfs.server;
+
+import com.ds.interfaces.ReplicationEvent;
+
+/**
+ * Provides the snapshot of the main server state the replication stream sends
+ * to a secondary server that has missed events.
+ * */
+public interface SnapshotSource {
+	/**
+	 * @return snapshot event reflecting at least all the events published so
+	 *         far
+	 * */
+	public ReplicationEvent snapshot();
+}
@@ -0,0 +1,350 @@
+package com.dfs.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import com.ds.interfaces.FileContents;
+
+/**
+ * Holds the messages of running transactions until they are committed or
+ * aborted. Messages are kept in pages of one direct memory arena allocated
+ * once, and only when the arena is full they are appended to a spill segment
+ * file of their transaction.
+ * */
+public class StagingArea {
+	public static final int DEFAULT_PAGE_SIZE = FileContents.BUFFER_SIZE;
+	public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024; // 64 MBytes
+
+	/**
+	 * number of finished transactions remembered to reject their late messages
+	 * */
+	private static final int FINISHED_TRANSACTIONS_HISTORY = 10000;
+
+	private int pageSize;
+	private ConcurrentLinkedQueue<ByteBuffer> freePages = new ConcurrentLinkedQueue<ByteBuffer>();
+	private File spillDirectory;
+
+	private ConcurrentHashMap<Long, StagedTransaction> transactions = new ConcurrentHashMap<Long, StagedTransaction>();
+
+	/**
+	 * transactions that have been committed or aborted lately, messages
+	 * arriving after that are dropped instead of being staged forever
+	 * */
+	private Map<Long, Boolean> finished = Collections.synchronizedMap(new LinkedHashMap<Long, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Entry<Long, Boolean> eldest) {
+			return size() > FINISHED_TRANSACTIONS_HISTORY;
+		}
+	});
+
+	private AtomicLong memoryBytes = new AtomicLong();
+	private AtomicLong spilledBytes = new AtomicLong();
+
+	public StagingArea(File spillDirectory) {
+		this(spillDirectory, DEFAULT_MEMORY_BUDGET, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * @param spillDirectory
+	 *            directory of the segment files used when the memory budget
+	 *            is exceeded
+	 * @param memoryBudget
+	 *            size in bytes of the direct memory arena
+	 * @param pageSize
+	 *            size in bytes of the arena pages
+	 * */
+	public StagingArea(File spillDirectory, long memoryBudget, int pageSize) {
+		this.spillDirectory = spillDirectory;
+		this.pageSize = pageSize;
+
+		ByteBuffer arena = ByteBuffer.allocateDirect((int) Math.min(memoryBudget, Integer.MAX_VALUE));
+		for (int start = 0; start + pageSize <= arena.capacity(); start += pageSize) {
+			arena.limit(start + pageSize).position(start);
+			freePages.add(arena.slice());
+		}
+
+		// segments left by a previous run belong to transactions that are
+		// lost anyway
+		File[] segments = spillDirectory.listFiles();
+		if (segments != null) {
+			for (File segment : segments) {
+				segment.delete();
+			}
+		}
+	}
+
+	/**
+	 * stages message of the transaction, a message with the same sequence
+	 * number replaces the old one.
+	 *
+	 * @return false if the transaction has been already committed or aborted
+	 * */
+	public boolean stage(long txnID, long msgSeqNum, byte[] data) throws IOException {
+		StagedTransaction tx = transactions.get(txnID);
+		if (tx == null) {
+			// checked and created atomically, discard marks the transaction
+			// finished before removing it, so a transaction discarded
+			// meanwhile is never created again
+			tx = transactions.compute(txnID, new BiFunction<Long, StagedTransaction, StagedTransaction>() {
+				@Override
+				public StagedTransaction apply(Long id, StagedTransaction existing) {
+					if (existing != null || finished.containsKey(id))
+						return existing;
+					return new StagedTransaction(id);
+				}
+			});
+			if (tx == null)
+				return false;
+		}
+
+		StagedMessage message = new StagedMessage();
+		message.length = data.length;
+		message.pages = allocatePages(data.length);
+
+		synchronized (tx) {
+			if (tx.discarded) {
+				if (message.pages != null)
+					freePages.addAll(Arrays.asList(message.pages));
+				return false;
+			}
+
+			if (message.pages != null) {
+				int offset = 0;
+				for (ByteBuffer page : message.pages) {
+					int len = Math.min(pageSize, data.length - offset);
+					page.clear();
+					page.put(data, offset, len);
+					page.flip();
+					offset += len;
+				}
+				memoryBytes.addAndGet(data.length);
+			} else {
+				message.spillOffset = tx.spill(data);
+				spilledBytes.addAndGet(data.length);
+			}
+
+			StagedMessage old = tx.messages.put(msgSeqNum, message);
+			if (old != null)
+				release(old);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the sorted sequence numbers of the staged messages of the
+	 *         transaction
+	 * */
+	public long[] getStagedMessages(long txnID) {
+		StagedTransaction tx = transactions.get(txnID);
+		if (tx == null)
+			return new long[0];
+
+		synchronized (tx) {
+			long[] msgsIDs = new long[tx.messages.size()];
+			int i = 0;
+			for (Long id : tx.messages.keySet()) {
+				msgsIDs[i++] = id;
+			}
+			return msgsIDs;
+		}
+	}
+
+	/**
+	 * writes messages 1 to numOfMsgs of the transaction in order at the
+	 * current position of the target channel. Consecutive messages in memory
+	 * are written with one gathering write and spilled messages are
+	 * transfered from their segment file by the kernel.
+	 *
+	 * @return number of written bytes
+	 * */
+	public long transferTo(long txnID, long numOfMsgs, FileChannel target) throws IOException {
+		StagedTransaction tx = transactions.get(txnID);
+		if (tx == null)
+			return 0;
+
+		synchronized (tx) {
+			long bytes = 0;
+			List<ByteBuffer> gather = new ArrayList<ByteBuffer>();
+			for (long i = 1; i <= numOfMsgs; i++) {
+				StagedMessage message = tx.messages.get(i);
+				if (message == null)
+					throw new IOException("message " + i + " of transaction " + txnID + " is not staged");
+
+				if (message.pages != null) {
+					for (ByteBuffer page : message.pages) {
+						gather.add(page.duplicate());
+					}
+				} else {
+					bytes += write(target, gather);
+					long position = 0;
+					while (position < message.length) {
+						position += tx.segment.transferTo(message.spillOffset + position,
+								message.length - position, target);
+					}
+					bytes += message.length;
+				}
+			}
+			bytes += write(target, gather);
+			return bytes;
+		}
+	}
+
+	private long write(FileChannel target, List<ByteBuffer> gather) throws IOException {
+		if (gather.isEmpty())
+			return 0;
+
+		ByteBuffer[] buffers = gather.toArray(new ByteBuffer[gather.size()]);
+		long bytes = 0;
+		int first = 0;
+		while (first < buffers.length) {
+			bytes += target.write(buffers, first, buffers.length - first);
+			while (first < buffers.length && !buffers[first].hasRemaining())
+				first++;
+		}
+		gather.clear();
+		return bytes;
+	}
+
+	/**
+	 * drops all the staged messages of the transaction and releases their
+	 * memory and spill segment.
+	 * */
+	public void discard(long txnID) {
+		finished.put(txnID, Boolean.TRUE);
+
+		StagedTransaction tx = transactions.remove(txnID);
+		if (tx == null)
+			return;
+
+		synchronized (tx) {
+			tx.discarded = true;
+			for (StagedMessage message : tx.messages.values()) {
+				release(message);
+			}
+			tx.messages.clear();
+			tx.closeSegment();
+		}
+	}
+
+	private ByteBuffer[] allocatePages(int length) {
+		int count = (length + pageSize - 1) / pageSize;
+		ByteBuffer[] pages = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			pages[i] = freePages.poll();
+			if (pages[i] == null) {
+				// memory budget exceeded, give back what was taken and spill
+				for (int j = 0; j < i; j++) {
+					freePages.add(pages[j]);
+				}
+				return null;
+			}
+		}
+		return pages;
+	}
+
+	private void release(StagedMessage message) {
+		if (message.pages != null) {
+			freePages.addAll(Arrays.asList(message.pages));
+			memoryBytes.addAndGet(-message.length);
+		} else {
+			spilledBytes.addAndGet(-message.length);
+		}
+	}
+
+	/**
+	 * @return number of staged bytes kept in memory
+	 * */
+	public long getMemoryBytes() {
+		return memoryBytes.get();
+	}
+
+	/**
+	 * @return number of staged bytes spilled to segment files
+	 * */
+	public long getSpilledBytes() {
+		return spilledBytes.get();
+	}
+
+	/**
+	 * @return number of transactions having staged messages
+	 * */
+	public int getTransactionsCount() {
+		return transactions.size();
+	}
+
+	class StagedTransaction {
+		long txnID;
+		TreeMap<Long, StagedMessage> messages = new TreeMap<Long, StagedMessage>();
+		boolean discarded = false;
+
+		/**
+		 * spill segment of this transaction, opened when its first message is
+		 * spilled
+		 * */
+		FileChannel segment;
+		File segmentFile;
+
+		StagedTransaction(long txnID) {
+			this.txnID = txnID;
+		}
+
+		/**
+		 * appends data to the spill segment
+		 *
+		 * @return offset of data in the segment
+		 * */
+		long spill(byte[] data) throws IOException {
+			if (segment == null) {
+				segmentFile = new File(spillDirectory, txnID + ".seg");
+				segment = new RandomAccessFile(segmentFile, "rw").getChannel();
+			}
+
+			long offset = segment.size();
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				segment.write(buffer, offset + buffer.position());
+			}
+			return offset;
+		}
+
+		void closeSegment() {
+			if (segment == null)
+				return;
+
+			try {
+				segment.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			segmentFile.delete();
+			segment = null;
+		}
+	}
+
+	class StagedMessage {
+		int length;
+
+		/**
+		 * arena pages holding the message, or null if it has been spilled
+		 * */
+		ByteBuffer[] pages;
+		long spillOffset;
+	}
+}
@@ -0,0 +1,145 @@
+package com.dfs.server;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timer wheel of long ids. Scheduling an id and expiring it are
+ * O(1): each level has 256 slots, a slot of level l spans 256^l ticks, and
+ * the ids of a higher level slot are cascaded to the lower levels when the
+ * wheel reaches it. Ids scheduled beyond the range of the wheel are expired
+ * at the end of the range and have to be scheduled again by the caller.
+ * */
+public class TimerWheel {
+	private static final int SLOT_BITS = 8;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+
+	private long tickMillis;
+	private int levels;
+
+	/**
+	 * [level][slot]
+	 * */
+	private Slot[][] wheels;
+
+	/**
+	 * last tick processed by advance
+	 * */
+	private long currentTick;
+	private int size = 0;
+
+	/**
+	 * @param tickMillis
+	 *            resolution of the wheel
+	 * @param levels
+	 *            number of levels, the wheel covers 256^levels ticks
+	 * @param now
+	 *            current time in milliseconds
+	 * */
+	public TimerWheel(long tickMillis, int levels, long now) {
+		this.tickMillis = tickMillis;
+		this.levels = levels;
+		this.currentTick = now / tickMillis;
+
+		wheels = new Slot[levels][SLOTS];
+		for (int l = 0; l < levels; l++)
+			for (int s = 0; s < SLOTS; s++)
+				wheels[l][s] = new Slot();
+	}
+
+	/**
+	 * schedules id to expire at deadline, given in milliseconds
+	 * */
+	public synchronized void schedule(long id, long deadline) {
+		add(id, Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1));
+		size++;
+	}
+
+	private void add(long id, long tick) {
+		long delta = tick - currentTick;
+		long maxDelta = 1L << (SLOT_BITS * levels);
+		if (delta >= maxDelta) {
+			tick = currentTick + maxDelta - 1;
+			delta = maxDelta - 1;
+		}
+
+		int level = 0;
+		while (level < levels - 1 && delta >= (1L << (SLOT_BITS * (level + 1))))
+			level++;
+
+		wheels[level][(int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK)].add(id, tick);
+	}
+
+	/**
+	 * moves the wheel to the given time
+	 *
+	 * @return the ids that expired since the last call, or null if none did
+	 * */
+	public synchronized Slot advance(long now) {
+		Slot expired = null;
+		long target = now / tickMillis;
+		while (currentTick < target) {
+			currentTick++;
+
+			// cascade the higher levels whose slot starts at this tick, the
+			// highest first so its ids can land in the lower slots cascaded next
+			for (int l = levels - 1; l > 0; l--) {
+				if ((currentTick & ((1L << (SLOT_BITS * l)) - 1)) == 0)
+					cascade(wheels[l][(int) ((currentTick >>> (SLOT_BITS * l)) & SLOT_MASK)]);
+			}
+
+			Slot slot = wheels[0][(int) (currentTick & SLOT_MASK)];
+			if (slot.size > 0) {
+				if (expired == null)
+					expired = new Slot();
+				for (int i = 0; i < slot.size; i++)
+					expired.add(slot.ids[i], slot.ticks[i]);
+				size -= slot.size;
+				slot.size = 0;
+			}
+		}
+		return expired;
+	}
+
+	private void cascade(Slot slot) {
+		// the ids of the slot are due within the slot span, so all of them
+		// land in lower levels and never back in this slot
+		for (int i = 0; i < slot.size; i++)
+			add(slot.ids[i], slot.ticks[i]);
+		slot.size = 0;
+	}
+
+	/**
+	 * @return number of scheduled ids
+	 * */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * growable list of scheduled ids and their ticks
+	 * */
+	public static class Slot {
+		long[] ids = new long[4];
+		long[] ticks = new long[4];
+		int size = 0;
+
+		void add(long id, long tick) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				ticks = Arrays.copyOf(ticks, size * 2);
+			}
+			ids[size] = id;
+			ticks[size] = tick;
+			size++;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public long get(int index) {
+			return ids[index];
+		}
+	}
+}
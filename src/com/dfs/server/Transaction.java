@@ -6,9 +6,9 @@ public class Transaction {
 	public static final int ABORTED = 30;
 	
 	private String fileName;
-	private int state;
+	private volatile int state;
 	private long id;
-	private long lastEdited;
+	private volatile long lastEdited;
 	
 	public Transaction(String fileName, int state, long id, long lastEdited) {
 		this.fileName = fileName;
@@ -39,7 +39,7 @@ public class Transaction {
 	public void setState(int state) {
 		this.state = state;
 	}
-	public void setLastEdited(Long time) {
+	public void setLastEdited(long time) {
 		lastEdited = time;
 	}
 	public long getLastEdited() {
@@ -0,0 +1,94 @@
+package com.dfs.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free generator of unique transaction ids. An id is made of the
+ * milliseconds since EPOCH (41 bits), the node that generated it (10 bits)
+ * and a sequence number within the millisecond (12 bits), so up to 4096 ids
+ * are generated per millisecond and node without coordination.
+ *
+ * When the sequence of a millisecond is exhausted the generator borrows the
+ * next millisecond instead of waiting for the clock, and it never goes back
+ * in time if the clock does, so ids are always increasing.
+ * */
+public class TransactionIdGenerator {
+	/**
+	 * 2012-01-01T00:00:00Z, the ids of 41 bits of milliseconds last until 2081
+	 * */
+	public static final long EPOCH = 1325376000000L;
+
+	/**
+	 * node of the main server, and of the secondary server once it has taken
+	 * over the main server
+	 * */
+	public static final int MAIN_SERVER_NODE = 0;
+	public static final int SECONDARY_SERVER_NODE = 1;
+
+	public static final int NODE_BITS = 10;
+	public static final int SEQUENCE_BITS = 12;
+	public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+	private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+	private long node;
+
+	/**
+	 * last generated (milliseconds << SEQUENCE_BITS | sequence)
+	 * */
+	private AtomicLong last = new AtomicLong();
+
+	public TransactionIdGenerator(int node) {
+		if (node < 0 || node > MAX_NODE)
+			throw new IllegalArgumentException("node must be between 0 and " + MAX_NODE);
+		this.node = node;
+	}
+
+	public long nextId() {
+		long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+		while (true) {
+			long prev = last.get();
+			// a new millisecond starts at sequence 0, otherwise take the next
+			// sequence, which carries into the next millisecond on overflow
+			long next = now > prev ? now : prev + 1;
+			if (last.compareAndSet(prev, next))
+				return compose(next);
+		}
+	}
+
+	/**
+	 * makes the generator return ids greater than the given one, used after
+	 * recovering transactions generated before a restart
+	 * */
+	public void advancePast(long id) {
+		long state = ((id >>> (NODE_BITS + SEQUENCE_BITS)) << SEQUENCE_BITS) | (id & SEQUENCE_MASK);
+		while (true) {
+			long prev = last.get();
+			if (prev >= state || last.compareAndSet(prev, state))
+				return;
+		}
+	}
+
+	private long compose(long state) {
+		long millis = state >>> SEQUENCE_BITS;
+		return (millis << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | (state & SEQUENCE_MASK);
+	}
+
+	public int getNode() {
+		return (int) node;
+	}
+
+	/**
+	 * @return time in milliseconds the id has been generated at
+	 * */
+	public static long getTime(long id) {
+		return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+	}
+
+	/**
+	 * @return node that generated the id
+	 * */
+	public static int getNode(long id) {
+		return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE);
+	}
+}
@@ -0,0 +1,166 @@
+package com.dfs.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Concurrent table of transactions keyed by their primitive long id. The
+ * table is split into stripes locked independently, each one an open
+ * addressing hash table with linear probing, so lookups neither box the id
+ * nor allocate entries.
+ * */
+public class TransactionTable {
+	private static final int STRIPES = 64;
+	private static final int INITIAL_STRIPE_CAPACITY = 64;
+
+	private Stripe[] stripes = new Stripe[STRIPES];
+
+	public TransactionTable() {
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	private static int hash(long id) {
+		// spread the id bits, consecutive ids must not cluster
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Stripe stripe(int hash) {
+		return stripes[(hash >>> 26) & (STRIPES - 1)];
+	}
+
+	public Transaction get(long id) {
+		int hash = hash(id);
+		return stripe(hash).get(id, hash);
+	}
+
+	public boolean containsKey(long id) {
+		return get(id) != null;
+	}
+
+	/**
+	 * @return the transaction previously stored with this id, or null
+	 * */
+	public Transaction put(long id, Transaction tx) {
+		int hash = hash(id);
+		return stripe(hash).put(id, hash, tx);
+	}
+
+	/**
+	 * @return the removed transaction, or null
+	 * */
+	public Transaction remove(long id) {
+		int hash = hash(id);
+		return stripe(hash).remove(id, hash);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return snapshot of all the transactions of the table, each stripe is
+	 *         copied atomically
+	 * */
+	public List<Transaction> values() {
+		List<Transaction> values = new ArrayList<Transaction>();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (Transaction tx : stripe.values) {
+					if (tx != null)
+						values.add(tx);
+				}
+			}
+		}
+		return values;
+	}
+
+	class Stripe {
+		long[] keys = new long[INITIAL_STRIPE_CAPACITY];
+		Transaction[] values = new Transaction[INITIAL_STRIPE_CAPACITY];
+		int size = 0;
+
+		synchronized Transaction get(long id, int hash) {
+			int mask = keys.length - 1;
+			for (int i = hash & mask; values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == id)
+					return values[i];
+			}
+			return null;
+		}
+
+		synchronized Transaction put(long id, int hash, Transaction tx) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			for (; values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == id) {
+					Transaction old = values[i];
+					values[i] = tx;
+					return old;
+				}
+			}
+
+			keys[i] = id;
+			values[i] = tx;
+			if (++size > keys.length / 2)
+				resize(keys.length * 2);
+			return null;
+		}
+
+		synchronized Transaction remove(long id, int hash) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			for (; values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == id)
+					break;
+			}
+			if (values[i] == null)
+				return null;
+
+			Transaction old = values[i];
+			values[i] = null;
+			size--;
+
+			// shift back the following entries of the probe sequence so that
+			// lookups do not stop at the hole
+			int hole = i;
+			for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+				int home = hash(keys[j]) & mask;
+				boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+				if (movable) {
+					keys[hole] = keys[j];
+					values[hole] = values[j];
+					values[j] = null;
+					hole = j;
+				}
+			}
+			return old;
+		}
+
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			Transaction[] oldValues = values;
+			keys = new long[capacity];
+			values = new Transaction[capacity];
+
+			int mask = capacity - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldValues[j] == null)
+					continue;
+
+				int i = hash(oldKeys[j]) & mask;
+				while (values[i] != null)
+					i = (i + 1) & mask;
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+}
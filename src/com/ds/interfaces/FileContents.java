@@ -8,11 +8,17 @@ public class FileContents implements Serializable {
 	 */
 	private static final long serialVersionUID = 1L;
 	private byte[] contents; // file contents
+	private long fileLength; // length of the whole file, contents may be a part of it
 	
 	public static final int BUFFER_SIZE = 1024*4; // 4 KByes   
 	
 	public FileContents(byte[] contents) {
+		this(contents, contents.length);
+	}
+
+	public FileContents(byte[] contents, long fileLength) {
 		this.contents = contents;
+		this.fileLength = fileLength;
 	}
 
 	public void print() throws IOException {
@@ -22,4 +28,26 @@ public class FileContents implements Serializable {
 	public byte[] get() {
 		return contents;
 	}
+
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	/**
+	 * files are only appended to by commits, so the length of a committed
+	 * file is its version
+	 * 
+	 * @return version of the file when it has been read
+	 */
+	public long getVersion() {
+		return fileLength;
+	}
+
+	/**
+	 * @return false if this is the answer to a conditional read of a file
+	 *         that has not been modified, it carries no data then
+	 */
+	public boolean isModified() {
+		return contents != null;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+package com.ds.interfaces;
+
+import java.io.Serializable;
+
+/**
+ * Address of a replica server, handed to the clients so they can read files
+ * from the replicas directly.
+ * */
+public class ReplicaLocation implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private String hostName;
+	private int port;
+	private String uniqueName;
+
+	public ReplicaLocation(String hostName, int port, String uniqueName) {
+		this.hostName = hostName;
+		this.port = port;
+		this.uniqueName = uniqueName;
+	}
+
+	public String getHostName() {
+		return hostName;
+	}
+
+	/**
+	 * @return port of the registry the replica is bound in
+	 * */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return name the replica is bound with in its registry
+	 * */
+	public String getUniqueName() {
+		return uniqueName;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ReplicaLocation))
+			return false;
+		ReplicaLocation other = (ReplicaLocation) obj;
+		return port == other.port && hostName.equals(other.hostName)
+				&& uniqueName.equals(other.uniqueName);
+	}
+
+	@Override
+	public int hashCode() {
+		return (hostName.hashCode() * 31 + port) * 31 + uniqueName.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return hostName + ":" + port + "/" + uniqueName;
+	}
+}
@@ -8,12 +8,36 @@ public interface ReplicaServerInterface extends ServerInterface{
 
 	FileContents read(String fileName) throws FileNotFoundException, IOException, RemoteException;
 
+	FileContents read(String fileName, long offset, int length) throws FileNotFoundException, IOException, RemoteException;
+
+	FileContents readIfModified(String fileName, long version) throws FileNotFoundException, IOException, RemoteException;
+
 	long newTxn(String fileName) throws RemoteException, IOException;
 
 	int write(long txnID, long msgSeqNum, byte[] data) throws RemoteException, IOException;
 
+	int writeBatch(long txnID, long[] msgSeqNums, byte[][] data) throws RemoteException, IOException;
+
+	/**
+	 * stages the message like write and forwards it to the first replica of
+	 * the chain, with the rest of the chain, so the message flows through all
+	 * the replicas and the acknowledgement flows back.
+	 * 
+	 * @param chain
+	 *            : replicas the message still has to be written to
+	 * @return ACK once all the replicas of the chain have staged the message,
+	 *         otherwise the answer of the first replica that did not
+	 */
+	int chainWrite(long txnID, long msgSeqNum, byte[] data, ReplicaLocation[] chain) throws RemoteException, IOException;
+
 	int commit(long txnID, long numOfMsgs, String filename)	throws MessageNotFoundException, RemoteException;
 
+	/**
+	 * stages the data as the only message of the transaction and commits it
+	 * to the file, see commit
+	 */
+	int append(long txnID, String fileName, byte[] data) throws RemoteException, IOException;
+
 	int abort(long txnID) throws RemoteException;
 
 	boolean registerClient(ClientInterface client) throws RemoteException;
@@ -0,0 +1,211 @@
+package com.ds.interfaces;
+
+import java.io.Serializable;
+import java.util.Hashtable;
+
+/**
+ * A change of the main server state shipped to the secondary server. Events
+ * are numbered by the main server in the order they happened, so the
+ * secondary can acknowledge them and ignore the ones it has already applied.
+ * The numbering starts again with each main server, which gives its events a
+ * new epoch.
+ *
+ * A snapshot event carries the whole transactions and clients tables, it is
+ * sent instead of the events the secondary has missed.
+ * */
+public class ReplicationEvent implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final int READ = 1;
+	public static final int NEW_TXN = 2;
+	public static final int WRITE = 3;
+	public static final int COMMIT = 4;
+	public static final int ABORT = 5;
+	public static final int REGISTER_CLIENT = 6;
+	public static final int UNREGISTER_CLIENT = 7;
+	public static final int WRITE_BATCH = 8;
+	public static final int APPEND = 9;
+	public static final int SNAPSHOT = 10;
+
+	private int type;
+	private long epoch;
+	private long seq;
+	private long time;
+	private String fileName;
+	private long txnID;
+	private long msgSeqNum;
+	private int dataLength;
+	private long[] msgSeqNums;
+	private long[] dataLengths;
+	private ClientInterface client;
+	private String authToken;
+	private long[] txnIDs;
+	private int[] states;
+	private String[] fileNames;
+	private long[] times;
+	private Hashtable<String, ClientInterface> clients;
+
+	private ReplicationEvent(int type, long time) {
+		this.type = type;
+		this.time = time;
+	}
+
+	public static ReplicationEvent read(String fileName, long time) {
+		ReplicationEvent event = new ReplicationEvent(READ, time);
+		event.fileName = fileName;
+		return event;
+	}
+
+	public static ReplicationEvent newTxn(String fileName, long txnID, long time) {
+		ReplicationEvent event = new ReplicationEvent(NEW_TXN, time);
+		event.fileName = fileName;
+		event.txnID = txnID;
+		return event;
+	}
+
+	public static ReplicationEvent write(long txnID, long msgSeqNum, int dataLength, long time) {
+		ReplicationEvent event = new ReplicationEvent(WRITE, time);
+		event.txnID = txnID;
+		event.msgSeqNum = msgSeqNum;
+		event.dataLength = dataLength;
+		return event;
+	}
+
+	public static ReplicationEvent writeBatch(long txnID, long[] msgSeqNums, long[] dataLengths, long time) {
+		ReplicationEvent event = new ReplicationEvent(WRITE_BATCH, time);
+		event.txnID = txnID;
+		event.msgSeqNums = msgSeqNums;
+		event.dataLengths = dataLengths;
+		return event;
+	}
+
+	public static ReplicationEvent append(long txnID, String fileName, int dataLength, long time) {
+		ReplicationEvent event = new ReplicationEvent(APPEND, time);
+		event.txnID = txnID;
+		event.fileName = fileName;
+		event.dataLength = dataLength;
+		return event;
+	}
+
+	public static ReplicationEvent commit(long txnID, String fileName, long time) {
+		ReplicationEvent event = new ReplicationEvent(COMMIT, time);
+		event.txnID = txnID;
+		event.fileName = fileName;
+		return event;
+	}
+
+	public static ReplicationEvent abort(long txnID, String fileName, long time) {
+		ReplicationEvent event = new ReplicationEvent(ABORT, time);
+		event.txnID = txnID;
+		event.fileName = fileName;
+		return event;
+	}
+
+	public static ReplicationEvent registerClient(ClientInterface client, String authToken) {
+		ReplicationEvent event = new ReplicationEvent(REGISTER_CLIENT, System.currentTimeMillis());
+		event.client = client;
+		event.authToken = authToken;
+		return event;
+	}
+
+	public static ReplicationEvent unregisterClient(ClientInterface client, String authToken) {
+		ReplicationEvent event = new ReplicationEvent(UNREGISTER_CLIENT, System.currentTimeMillis());
+		event.client = client;
+		event.authToken = authToken;
+		return event;
+	}
+
+	/**
+	 * @param	txnIDs	ids of all the transactions
+	 * @param	states	states of the transactions
+	 * @param	fileNames	files of the transactions
+	 * @param	times	last edit times of the transactions
+	 * @param	clients	all the registered clients keyed by their auth token
+	 * */
+	public static ReplicationEvent snapshot(long[] txnIDs, int[] states, String[] fileNames, long[] times,
+			Hashtable<String, ClientInterface> clients) {
+		ReplicationEvent event = new ReplicationEvent(SNAPSHOT, System.currentTimeMillis());
+		event.txnIDs = txnIDs;
+		event.states = states;
+		event.fileNames = fileNames;
+		event.times = times;
+		event.clients = clients;
+		return event;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public void setEpoch(long epoch) {
+		this.epoch = epoch;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public void setSeq(long seq) {
+		this.seq = seq;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getTxnID() {
+		return txnID;
+	}
+
+	public long getMsgSeqNum() {
+		return msgSeqNum;
+	}
+
+	public int getDataLength() {
+		return dataLength;
+	}
+
+	public long[] getMsgSeqNums() {
+		return msgSeqNums;
+	}
+
+	public long[] getDataLengths() {
+		return dataLengths;
+	}
+
+	public ClientInterface getClient() {
+		return client;
+	}
+
+	public String getAuthToken() {
+		return authToken;
+	}
+
+	public long[] getTxnIDs() {
+		return txnIDs;
+	}
+
+	public int[] getStates() {
+		return states;
+	}
+
+	public String[] getFileNames() {
+		return fileNames;
+	}
+
+	public long[] getTimes() {
+		return times;
+	}
+
+	public Hashtable<String, ClientInterface> getClients() {
+		return clients;
+	}
+}
@@ -0,0 +1,24 @@
+package com.ds.interfaces;
+
+/**
+ * Thrown by the secondary server when the events it receives do not follow
+ * the last one it has applied, the main server has to send it a snapshot of
+ * its state before shipping events again.
+ * */
+public class ResyncRequiredException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * sequence number of the last event the secondary has applied
+	 * */
+	private long lastAppliedSeq;
+
+	public ResyncRequiredException(String message, long lastAppliedSeq) {
+		super(message);
+		this.lastAppliedSeq = lastAppliedSeq;
+	}
+
+	public long getLastAppliedSeq() {
+		return lastAppliedSeq;
+	}
+}
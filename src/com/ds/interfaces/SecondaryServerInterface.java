@@ -2,6 +2,7 @@ package com.ds.interfaces;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface SecondaryServerInterface extends Remote{
 	public void read(String fileName, long time) throws RemoteException;
@@ -21,4 +22,15 @@ public interface SecondaryServerInterface extends Remote{
 
 	public void unregisterClient(ClientInterface client, String auth_token)
 			throws RemoteException;
+
+	/**
+	 * applies a batch of events of the main server in order, events that
+	 * have been applied before are ignored
+	 * 
+	 * @return sequence number of the last applied event
+	 * @throws ResyncRequiredException
+	 *             if an event does not follow the last applied one, the
+	 *             secondary is stale until it receives a snapshot
+	 */
+	public long replicate(List<ReplicationEvent> events) throws RemoteException, ResyncRequiredException;
 }
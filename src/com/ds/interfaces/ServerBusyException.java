@@ -0,0 +1,24 @@
+package com.ds.interfaces;
+
+/**
+ * Thrown by the server when it is too busy to accept a call, or when the
+ * client already has too many calls running. The call has not been executed
+ * and may be retried after the given delay.
+ */
+public class ServerBusyException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * milliseconds the client should wait before retrying
+	 */
+	private long retryAfter;
+
+	public ServerBusyException(String message, long retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+}
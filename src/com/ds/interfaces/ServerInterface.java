@@ -5,6 +5,11 @@ import java.rmi.Remote;
 import java.rmi.RemoteException;
 
 
+/**
+ * The calls reading or changing files may be rejected with a
+ * ServerBusyException when the server runs admission control, the call has
+ * not been executed and may be sent again after the delay it carries.
+ */
 public interface ServerInterface extends Remote {
 	final static int ACK = 100;
 	/**
@@ -25,6 +30,12 @@ public interface ServerInterface extends Remote {
 	 * 
 	 */
 	final static int INVALID_OPERATION = 202;
+	/**
+	 * Lock timeout. Sent by the server if the file of a committed transaction
+	 * stayed locked by other commits for too long, the client may retry the
+	 * commit later.
+	 */
+	final static int LOCK_TIMEOUT = 203;
 	
 	final static String DFSERVER_UNIQUE_NAME = "dsf_name";
 	final static String DFS_SECONDARY_SERVER_UNIQUE_NAME = "dsf_secondary_name";
@@ -39,9 +50,59 @@ public interface ServerInterface extends Remote {
 	 * @throws FileNotFoundException
 	 * @throws IOException
 	 * @throws RemoteException
+	 * @throws ServerBusyException
 	 */
 	public FileContents read(String fileName) throws FileNotFoundException,
-			IOException, RemoteException;
+			IOException, RemoteException, ServerBusyException;
+
+	/**
+	 * the client reads a range of the file from the server, used to stream
+	 * files larger than a single message in chunks
+	 * 
+	 * @param fileName
+	 * @param offset
+	 *            : position in the file of the first byte to read
+	 * @param length
+	 *            : maximum number of bytes to read
+	 * @return File data, shorter than length at the end of the file and empty
+	 *         if offset is at or after the end of the file
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 *             also if offset or length is negative
+	 * @throws RemoteException
+	 * @throws ServerBusyException
+	 */
+	public FileContents read(String fileName, long offset, int length)
+			throws FileNotFoundException, IOException, RemoteException, ServerBusyException;
+
+	/**
+	 * the client reads the file from the server only if it has been modified
+	 * since the version it already has, see FileContents.getVersion
+	 * 
+	 * @param fileName
+	 * @param version
+	 *            : version of the file known to the client
+	 * @return File data if the file version is greater than version,
+	 *         otherwise FileContents without data carrying the file version
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 * @throws RemoteException
+	 * @throws ServerBusyException
+	 */
+	public FileContents readIfModified(String fileName, long version)
+			throws FileNotFoundException, IOException, RemoteException, ServerBusyException;
+
+	/**
+	 * the client asks the server where the file can be read from, and then
+	 * reads it from one of the replicas directly. The read is logged by the
+	 * server as if the client had read the file through it.
+	 * 
+	 * @param fileName
+	 * @return locations of the replicas holding the file
+	 * @throws RemoteException
+	 * @throws ServerBusyException
+	 */
+	public ReplicaLocation[] lookup(String fileName) throws RemoteException, ServerBusyException;
 
 	/**
 	 * the client asks the server to begin a new transaction
@@ -50,8 +111,9 @@ public interface ServerInterface extends Remote {
 	 * @return the new transaction ID
 	 * @throws RemoteException
 	 * @throws IOException
+	 * @throws ServerBusyException
 	 */
-	public long newTxn(String fileName) throws RemoteException, IOException;
+	public long newTxn(String fileName) throws RemoteException, IOException, ServerBusyException;
 
 	/**
 	 * the client asks the server to write data as part of an existing
@@ -67,9 +129,47 @@ public interface ServerInterface extends Remote {
 	 * @return ACK in case of success, ACK_RSND, INVALID_TRANSACTION_ID, or INVALID_OPERATION
 	 * @throws IOException
 	 * @throws RemoteException
+	 * @throws ServerBusyException
 	 */
 	public int write(long txnID, long msgSeqNum, byte[] data)
-			throws RemoteException, IOException;
+			throws RemoteException, IOException, ServerBusyException;
+
+	/**
+	 * the client asks the server to write many messages of an existing
+	 * transaction at once, this costs a single round trip to the server and
+	 * from the server to each replica
+	 * 
+	 * @param txnID
+	 *            : the ID of the transaction to which the messages relate
+	 * @param msgSeqNums
+	 *            : the sequence numbers of the messages
+	 * @param data
+	 *            : data of each message, in the order of msgSeqNums
+	 * @return ACK in case of success, ACK_RSND, INVALID_TRANSACTION_ID, or INVALID_OPERATION
+	 *         also returned for an empty batch
+	 * @throws IOException
+	 * @throws RemoteException
+	 * @throws ServerBusyException
+	 */
+	public int writeBatch(long txnID, long[] msgSeqNums, byte[][] data)
+			throws RemoteException, IOException, ServerBusyException;
+
+	/**
+	 * the client asks the server for the chain of replicas the messages of
+	 * the transaction can be written to directly, see
+	 * ReplicaServerInterface.chainWrite. The messages are then committed
+	 * through the server as usual. Asking for the chain again keeps an idle
+	 * transaction from timing out.
+	 * 
+	 * @param txnID
+	 *            : the ID of the transaction to which this message relates
+	 * @return the replicas in the order the messages have to flow through
+	 *         them, or null if the transaction is unknown or has been
+	 *         committed or aborted
+	 * @throws RemoteException
+	 * @throws ServerBusyException
+	 */
+	public ReplicaLocation[] writeChain(long txnID) throws RemoteException, ServerBusyException;
 
 	/**
 	 * the client asks the server to commit the transaction. In this case, the
@@ -81,12 +181,30 @@ public interface ServerInterface extends Remote {
 	 * @param numOfMsgs
 	 *            : Number of messages sent to the server
 	 * @return ACK in case of success,INVALID_OPERATION, or INVALID_TRANSACTION_ID for wrong txn id,
+	 *         LOCK_TIMEOUT if the file could not be locked in time,
 	 *         or through MessageNotFoundException calling for missing data.
 	 * @throws MessageNotFoundException
 	 * @throws RemoteException
+	 * @throws ServerBusyException
 	 */
 	public int commit(long txnID, long numOfMsgs)
-			throws MessageNotFoundException, RemoteException;
+			throws MessageNotFoundException, RemoteException, ServerBusyException;
+
+	/**
+	 * the client appends data to the file in a single call, as a transaction
+	 * that is started, written with one message and committed at once. This
+	 * is meant for small writes that fit in one message.
+	 * 
+	 * @param fileName
+	 * @param data
+	 *            : data to append to the file
+	 * @return ACK in case of success, LOCK_TIMEOUT if the file could not be
+	 *         locked in time, or INVALID_OPERATION
+	 * @throws IOException
+	 * @throws RemoteException
+	 * @throws ServerBusyException
+	 */
+	public int append(String fileName, byte[] data) throws RemoteException, IOException, ServerBusyException;
 
 	/**
 	 * the client asks the server to abort the transaction.
@@ -96,8 +214,9 @@ public interface ServerInterface extends Remote {
 	 * @return ACK in case of success, INVALID_OPERATION, or INVALID_TRANSACTION_ID in case of wrong
 	 *         txn id
 	 * @throws RemoteException
+	 * @throws ServerBusyException
 	 */
-	public int abort(long txnID) throws RemoteException;
+	public int abort(long txnID) throws RemoteException, ServerBusyException;
 
 	/**
 	 * register client
@@ -117,4 +236,18 @@ public interface ServerInterface extends Remote {
 	 */
 	public boolean unregisterClient(ClientInterface client)
 			throws RemoteException;
-}
+
+	/**
+	 * opens a session for a registered client, the calls made through the
+	 * returned server are counted against the quota of the client instead of
+	 * the one of its host
+	 * 
+	 * @param client
+	 *            : registered client
+	 * @return server to call on behalf of the client, or null if the client is
+	 *         not registered
+	 * @throws RemoteException
+	 */
+	public ServerInterface openSession(ClientInterface client)
+			throws RemoteException;
+}
\ No newline at end of file